@@ -106,7 +106,7 @@
   ([net]
    (open! net {}))
   ([net opts]
-   (let [id (str "c" (:next-client-id (swap! net update :next-client-id inc)))]
+   (let [id (str "c" (net/next-client-id! net))]
      (net/add-node! net id)
      {:net         net
       :node-id     id
@@ -10,7 +10,8 @@
                        [net :as net]
                        [nemesis :as nemesis]
                        [process :as process]]
-            [maelstrom.net.checker :as net.checker]
+            [maelstrom.net [checker :as net.checker]
+                           [link :as link]]
             [maelstrom.workload [broadcast :as broadcast]
                                 [echo :as echo]
                                 [g-set :as g-set]
@@ -39,22 +40,37 @@
 
 (def nemeses
   "A set of valid nemeses you can pass at the CLI."
-  #{:partition})
+  #{:partition :duplicate :reorder})
 
 (defn maelstrom-test
   "Construct a Jepsen test from parsed CLI options"
   [{:keys [bin args nodes rate] :as opts}]
   (let [nodes (:nodes opts)
-        net   (net/net (:latency opts)
-                       (:log-net-send opts)
-                       (:log-net-recv opts))
+        net   (net/net {:latency        (:latency opts)
+                        :bandwidth      (:bandwidth opts)
+                        :link-model     (some->> (:link-model opts)
+                                                 (link/load-spec nodes))
+                        :log-send?      (:log-net-send opts)
+                        :log-recv?      (:log-net-recv opts)
+                        :partition-mode (:partition-mode opts)
+                        :virtual-time?  (:virtual-time opts)
+                        :seed           (:seed opts)
+                        :queue-capacity (:queue-capacity opts)
+                        :overflow       (:queue-overflow opts)
+                        :flaky-p-loss   (:flaky-p-loss opts)})
         db            (db/db {:net net, :bin bin, :args args})
         workload-name (:workload opts)
         workload      ((workloads workload-name)
                        (assoc opts :nodes nodes, :net net))
-        nemesis-package (nemesis/package {:db       db
-                                          :interval (:nemesis-interval opts)
-                                          :faults   (:nemesis opts)})
+        nemesis-package (nemesis/package
+                          {:db        db
+                           :net       net
+                           :interval  (:nemesis-interval opts)
+                           :faults    (:nemesis opts)
+                           :duplicate {:p   (:duplicate-probability opts)
+                                       :max (:duplicate-max opts)}
+                           :reorder   {:p      (:reorder-probability opts)
+                                       :window (:reorder-window opts)}})
         generator (->> (if (pos? rate)
                          (gen/stagger (/ rate) (:generator workload))
                          (gen/sleep (:time-limit opts)))
@@ -130,6 +146,58 @@
     :validate [(partial every? cm/friendly-model-name)
                (cli/one-of (sort (map cm/friendly-model-name cm/all-models)))]]
 
+   [nil "--bandwidth BYTES" "How many bytes of message body per second each link between nodes can carry. Omit for unlimited bandwidth."
+    :parse-fn parse-long
+    :validate [pos? "Must be positive"]]
+
+   [nil "--duplicate-max INT" "When the duplicate nemesis is active, how many extra copies, at most, does a duplicated message get?"
+    :default  2
+    :parse-fn parse-long
+    :validate [pos? "Must be positive"]]
+
+   [nil "--duplicate-probability FLOAT" "When the duplicate nemesis is active, what fraction of messages are duplicated?"
+    :default  0.1
+    :parse-fn #(Double/parseDouble %)
+    :validate [#(<= 0 % 1) "Must be between 0 and 1"]]
+
+   [nil "--flaky-p-loss FLOAT" "What fraction of messages are lost while the network is flaky?"
+    :default  0.5
+    :parse-fn #(Double/parseDouble %)
+    :validate [#(<= 0 % 1) "Must be between 0 and 1"]]
+
+   [nil "--framing" "If set, offers nodes length-prefixed JSON or CBOR framing in their init messages, instead of newline-delimited JSON. See doc/protocol.md."]
+
+   [nil "--journal-backpressure MODE" "What should happen when the network journal's writer can't keep up: make senders and receivers wait (block), or drop journal events (drop)?"
+    :default  :block
+    :parse-fn keyword
+    :validate [#{:block :drop} "Must be block or drop"]]
+
+   [nil "--journal-buffer INT" "How many network journal events can wait to be written to disk."
+    :default  65536
+    :parse-fn parse-long
+    :validate [pos? "Must be positive"]]
+
+   [nil "--journal-compression CODEC" "How to compress the network journal's blocks: none, or deflate."
+    :default  :deflate
+    :parse-fn keyword
+    :validate [#{:none :deflate} "Must be none or deflate"]]
+
+   [nil "--journal-format FORMAT" "How to store the network journal: fressian, or columnar, which is faster to analyze."
+    :default  :fressian
+    :parse-fn keyword
+    :validate [#{:fressian :columnar} "Must be fressian or columnar"]]
+
+   [nil "--journal-retention MODE" "Which network journal events to keep on disk: full, clients-only, sampled (every client message, and one in --journal-sample server messages), or counters-only. Statistics count every event regardless."
+    :default  :full
+    :parse-fn keyword
+    :validate [#{:full :clients-only :sampled :counters-only}
+               "Must be full, clients-only, sampled, or counters-only"]]
+
+   [nil "--journal-sample INT" "With --journal-retention sampled, keep one in this many server messages."
+    :default  100
+    :parse-fn parse-long
+    :validate [pos? "Must be positive"]]
+
    [nil "--key-count INT" "For the append test, how many keys should we test at once?"
     :parse-fn parse-long
     :validate [pos? "must be positive"]]
@@ -145,6 +213,8 @@
     :validate [#{:constant :uniform :exponential}
                "Must be constant, uniform, or exponential"]]
 
+   [nil "--link-model SPEC" "An EDN or JSON file describing per-link latency and loss between nodes and regions, or a preset like regions-3 (3 regions, 2 ms within a region, 80 ms between) or regions-3-5-100 (5 ms within, 100 ms between)."]
+
    [nil "--log-net-send"    "Log packets as they're sent"
     :default false]
 
@@ -182,18 +252,69 @@
     :parse-fn read-string
     :validate [pos? "Must be positive"]]
 
+   [nil "--partition-mode MODE" "When should partitions drop messages: when they're received (recv), when they're sent (send), or both (in-flight)?"
+    :default :recv
+    :parse-fn keyword
+    :validate [#{:recv :send :in-flight}
+               "Must be recv, send, or in-flight"]]
+
+   [nil "--queue-capacity INT" "How many messages can wait to be received by each node. Omit for unbounded queues."
+    :parse-fn parse-long
+    :validate [pos? "Must be positive"]]
+
+   [nil "--queue-overflow POLICY" "What happens to messages for a full queue: drop the new message (drop-tail), drop the oldest message in the queue (drop-head), or make the sender wait (block)."
+    :default :drop-tail
+    :parse-fn keyword
+    :validate [#{:drop-tail :drop-head :block}
+               "Must be drop-tail, drop-head, or block"]]
+
    [nil "--rate RATE" "Approximate number of request/sec"
     :default  5
     :parse-fn #(Double/parseDouble %)
     :validate [(complement neg?) "Can't be negative"]]
 
+   [nil "--reorder-probability FLOAT" "When the reorder nemesis is active, what fraction of messages are held back, so later messages can overtake them?"
+    :default  0.1
+    :parse-fn #(Double/parseDouble %)
+    :validate [#(<= 0 % 1) "Must be between 0 and 1"]]
+
+   [nil "--reorder-window MILLIS" "When the reorder nemesis is active, how long, at most, is a message held back?"
+    :default  100
+    :parse-fn parse-long
+    :validate [pos? "Must be positive"]]
+
+   [nil "--seed LONG" "A seed for Maelstrom's random choices, like message latencies and loss. If omitted, picks one at random. Tests record their seed, so you can rerun them with the same choices."
+    :parse-fn parse-long]
+
+   [nil "--stdin-batch-latency MILLIS" "When writing messages to a node's stdin, how long to wait for more messages to batch up with the first. 0 writes whatever is due right away."
+    :default  0
+    :parse-fn parse-long
+    :validate [(complement neg?) "Must not be negative"]]
+
    [nil "--topology SPEC" "What kind of network topology to offer to nodes, for those workloads (e.g. broadcast) which use one."
     :parse-fn keyword
     :default :grid
     :validate [broadcast/topologies (cli/one-of broadcast/topologies)]]
 
+   [nil "--transport MODE" "How nodes exchange messages with Maelstrom: over their stdin and stdout (pipe), or over a Unix domain socket whose path is in the MAELSTROM_SOCKET environment variable (socket). Sockets need Java 16 or higher."
+    :default  :pipe
+    :parse-fn keyword
+    :validate [#{:pipe :socket} "Must be pipe or socket"]]
+
+   [nil "--virtual-threads" "If set, and Java 21 or higher is available, runs each node's and service's IO on virtual threads rather than platform threads, which lets one machine simulate much larger clusters."
+    :default false]
+
+   [nil "--virtual-time" "If set, the network runs on a simulated clock, which skips ahead whenever every server is idle, so high-latency messages go as fast as nodes can process them. The time limit, request rate, and client timeouts are still wall-clock time."
+    :default false]
+
    ])
 
+(defn parse-seed
+  "If no seed was given, picks one, so that it's recorded in the test."
+  [parsed]
+  (update-in parsed [:options :seed]
+             #(or % (long (rand-int Integer/MAX_VALUE)))))
+
 (defn parse-node-count
   "Takes the node-count option and generates a :nodes list in the parsed option
   map, overriding whatever nodes are already there."
@@ -226,6 +347,7 @@
   [parsed]
   (-> parsed
       parse-latency
+      parse-seed
       parse-node-count
       add-args
       cli/test-opt-fn))
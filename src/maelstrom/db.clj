@@ -26,7 +26,8 @@
         (when (= (jepsen/primary test) node-id)
           (reset! services (service/start-services!
                              net
-                             (service/default-services test))))
+                             (service/default-services test)
+                             {:virtual-threads? (:virtual-threads test)})))
 
         ; Start this node
         (info "Setting up" node-id)
@@ -38,6 +39,10 @@
                   :net      net
                   :dir      (System/getProperty "java.io.tmpdir")
                   :log-stderr? (:log-stderr test)
+                  :stdin-batch-latency (:stdin-batch-latency test)
+                  :offer-framing? (:framing test)
+                  :transport (:transport test)
+                  :virtual-threads? (:virtual-threads test)
                   :log-file (->> (str node-id ".log")
                                  (store/path test "node-logs")
                                  .getCanonicalPath)}))
@@ -48,9 +53,11 @@
             (let [res (client/rpc!
                         client
                         node-id
-                        {:type "init"
-                         :node_id node-id
-                         :node_ids (:nodes test)}
+                        (cond-> {:type "init"
+                                 :node_id node-id
+                                 :node_ids (:nodes test)}
+                          (:framing test)
+                          (assoc :framings (sort (keys process/framings))))
                         10000)]
               (when (not= "init_ok" (:type res))
                 (throw+ {:type      :init-failed
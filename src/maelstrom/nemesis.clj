@@ -5,12 +5,87 @@
                     [nemesis :as n]
                     [util :refer [pprint-str]]]
             [jepsen.nemesis.combined :as nc]
+            [maelstrom [net :as net]]
             [slingshot.slingshot :refer [try+ throw+]]))
 
+(def net-faults
+  "Faults which the network itself injects into messages in flight."
+  #{:duplicate :reorder})
+
+(defn net-nemesis
+  "A nemesis which turns the network's duplication and reordering on and off.
+  Takes a network and package options (see net-package)."
+  [net {:keys [duplicate reorder]}]
+  (reify
+    n/Nemesis
+    (setup! [this test] this)
+
+    (invoke! [this test op]
+      (case (:f op)
+        :start-duplicate (net/duplicate! net (:p duplicate) (:max duplicate))
+        :stop-duplicate  (net/stop-duplicating! net)
+        :start-reorder   (net/reorder! net (:p reorder) (:window reorder))
+        :stop-reorder    (net/stop-reordering! net))
+      (assoc op :value :done))
+
+    (teardown! [this test]
+      (net/stop-duplicating! net)
+      (net/stop-reordering! net))
+
+    n/Reflection
+    (fs [this]
+      #{:start-duplicate :stop-duplicate :start-reorder :stop-reorder})))
+
+(defn start-f
+  "The :f which starts a fault, e.g. :start-duplicate."
+  [fault]
+  (keyword (str "start-" (name fault))))
+
+(defn stop-f
+  "The :f which stops a fault, e.g. :stop-duplicate."
+  [fault]
+  (keyword (str "stop-" (name fault))))
+
+(defn net-package
+  "A nemesis package for network faults. Options are those for
+  jepsen.nemesis.combined/nemesis-package, plus:
+
+    :net        The maelstrom.net network
+    :duplicate  A map of {:p probability, :max copies}: while active, each
+                message is duplicated with probability p, into up to max
+                extra copies.
+    :reorder    A map of {:p probability, :window ms}: while active, each
+                message is held back with probability p, by up to window ms,
+                so later messages can overtake it."
+  [opts]
+  (let [faults  (filter net-faults (:faults opts))
+        needed? (boolean (seq faults))]
+    {:nemesis         (net-nemesis (:net opts) opts)
+     :generator       (when needed?
+                        (->> faults
+                             (map (fn [f]
+                                    (gen/flip-flop
+                                      (gen/repeat {:type :info, :f (start-f f)})
+                                      (gen/repeat {:type :info, :f (stop-f f)}))))
+                             gen/mix
+                             (gen/stagger (:interval opts))))
+     :final-generator (when needed?
+                        (map (fn [f] {:type :info, :f (stop-f f)}) faults))
+     :perf            (->> faults
+                           (map (fn [f]
+                                  {:name  (name f)
+                                   :start #{(start-f f)}
+                                   :stop  #{(stop-f f)}
+                                   :color (case f
+                                            :duplicate "#A0C8E9"
+                                            :reorder   "#C5A0E9")}))
+                           set)}))
+
 (defn package
   "A full nemesis package. Options are those for
-  jepsen.nemesis.combined/nemesis-package."
+  jepsen.nemesis.combined/nemesis-package, and for net-package."
   [opts]
   (nc/compose-packages
     [(nc/partition-package opts)
-     (nc/db-package opts)]))
+     (nc/db-package opts)
+     (net-package opts)]))
@@ -1,22 +1,28 @@
 (ns maelstrom.net
   "A simulated, mutable unordered network, supporting randomized delivery,
   selective packet loss, and long-lasting partitions."
-  (:require [clojure.tools.logging :refer [info warn]]
+  (:require [cheshire.core :as json]
+            [clojure.tools.logging :refer [info warn]]
             [jepsen [core :as jepsen]
                     [net :as net]
                     [os :as os]]
             [maelstrom [util :as u]]
             [maelstrom.net [message :as msg]
-                           [journal :as j]]
+                           [journal :as j]
+                           [link :as link]
+                           [node :as node]
+                           [scheduler :as sched]]
             [slingshot.slingshot :refer [try+ throw+]]
-            [schema.core :as s]
-            [incanter.distributions :as dist
-             :refer [Distribution
-                     draw
-                     exponential-distribution
-                     integer-distribution]])
-  (:import (java.util.concurrent PriorityBlockingQueue
-                                 TimeUnit)))
+            [schema.core :as s])
+  (:import (java.nio.charset StandardCharsets)
+           (java.util Arrays
+                      BitSet
+                      SplittableRandom)
+           (java.util.concurrent BlockingQueue
+                                 LinkedBlockingQueue
+                                 Semaphore
+                                 TimeUnit)
+           (java.util.concurrent.atomic AtomicLong)))
 
 ; Message validation
 (def NodeId
@@ -35,90 +41,319 @@
   "Returns schema errors on the given message, if any."
   (s/checker Message))
 
-(defn latency-compare [a b]
-  (compare (:deadline a) (:deadline b)))
-
-(defrecord ConstantDistribution [x]
-  Distribution
-  (draw [this] x))
-
-(defn constant-dist
-  "A constant distribution: always x"
-  [x]
-  (ConstantDistribution. x))
-
-(defrecord ScaledDistribution [d scale]
-  Distribution
-  (draw [this] (* scale (dist/draw d))))
-
-(defn scale-dist
-  "Scales a distribution linearly by `scale`"
-  [d scale]
-  (ScaledDistribution. d scale))
-
-(defn unscale-dist
-  "Unwrap a ScaledDistribution."
-  [sd]
-  (:d sd))
-
-(defn latency-dist
-  "Takes options:
-
-    :mean   The mean latency
-    :dist   The shape of the distribution of latencies injected
-
-  and yields an Incanter distribution, used to generate latencies for each
-  message."
-  [{:keys [dist mean]}]
-  (case dist
-    :constant     (constant-dist mean)
-    :uniform      (integer-distribution 0 (* 2 mean))
-    :exponential  (exponential-distribution (/ mean))))
+; A snapshot of the network's fault configuration. Faults change rarely--only
+; when the nemesis acts--whereas every message needs to consult them. We
+; publish an immutable snapshot of all of them through a single atom, so the
+; hot path reads the whole configuration with one volatile deref.
+;
+;   :latency-scale  A factor applied to every link's latency
+;   :p-loss         The probability of any given message being lost, on top
+;                   of whatever its link loses
+;   :p-duplicate    The probability of any given message being duplicated
+;   :max-duplicates How many extra copies, at most, a duplicated message gets
+;   :p-reorder      The probability of any given message being held back, so
+;                   that later messages can overtake it
+;   :reorder-window The longest, in ms, we hold back a message
+;   :partitions     A partition matrix: an array of BitSets, indexed by the
+;                   receiver's node number. If a receiver's BitSet has the
+;                   source's node number set, the receiver drops packets from
+;                   that source. See partitioned?.
+(defrecord Faults [latency-scale
+                   p-loss
+                   p-duplicate
+                   max-duplicates
+                   p-reorder
+                   reorder-window
+                   partitions])
+
+; The network itself. Routing and fault configuration are deliberately kept
+; apart: the routing table is mutated in place as nodes come and go, and the
+; faults are swapped as a whole. Internally, nodes are referred to by the
+; numbers maelstrom.net.node assigns them; ids are only materialized when
+; messages leave the network.
+;
+;   :nodes            A maelstrom.net.node registry of every node we've seen
+;   :queues           A volatile array of queues of messages which are ready
+;                     for delivery, indexed by node number. nil for nodes
+;                     which aren't currently in the network.
+;   :deliverers       A volatile array of functions, indexed by node number,
+;                     which put a message on that node's queue, applying the
+;                     overflow policy. See deliverer.
+;   :permits          A volatile array of Semaphores, indexed by node number,
+;                     bounding how many messages may be in flight to or
+;                     waiting for each node. Only used by the :block policy.
+;   :queue-capacity   How many messages each node's queue holds, or nil
+;   :overflow         What to do when a queue is full
+;   :flaky-p-loss     The probability of loss when the network is flaky
+;   :scheduler        Holds in-flight messages until their latency elapses,
+;                     and keeps the network's clock
+;   :links            A volatile link matrix: an array of rows, indexed by
+;                     the sender's link index, of arrays of Links, indexed by
+;                     the receiver's. See link-for.
+;   :link-model       A function (f src-id dest-id) which returns the Link
+;                     between two nodes; used to rebuild the link matrix
+;   :default-link     The Link for pairs of nodes outside the link matrix
+;   :seed             The seed from which we derive random streams
+;   :rngs             A volatile array of SplittableRandoms, indexed by node
+;                     number. Each node's sends draw latency and loss from
+;                     its own stream.
+;   :journal          A volatile containing a mutable log for network
+;                     messages
+;   :faults           An atom containing the current Faults
+;   :log-send?        Whether to log every message sent
+;   :log-recv?        Whether to log every message received
+;   :partition-on-send?  Whether to drop partitioned messages when sent
+;   :partition-on-recv?  Whether to drop partitioned messages when delivered
+;   :next-client-id   An AtomicLong used to name clients
+;   :next-message-id  An AtomicLong used to assign message IDs
+(defrecord Net [nodes
+                queues
+                deliverers
+                permits
+                queue-capacity
+                overflow
+                flaky-p-loss
+                scheduler
+                links
+                link-model
+                default-link
+                seed
+                rngs
+                journal
+                faults
+                log-send?
+                log-recv?
+                partition-on-send?
+                partition-on-recv?
+                next-client-id
+                next-message-id])
 
 (defn net
-  "Construct a new network. Takes a latency specification map (see
-  latency-dist).
-
-      :queues      A map of receiver node ids to PriorityQueues
-      :journal     A mutable log for network messages
-      :p-loss      The probability of any given message being lost
-      :partitions  A map of receivers to collections of sources. If a
-                   source/receiver pair exists, receiver will drop packets
-                   from source.
-      :latency-dist   An incanter distribution used to generate latencies
-                      for messages"
-  [latency log-send? log-recv?]
-  (atom {:queues          {}
-         ; This will be filled in by the OS adapter--we need this to manage the
-         ; disk file open/close lifecycle, and because we'll need a test map
-         ; with a start time.
-         :journal         nil
-         :log-send?       log-send?
-         :log-recv?       log-recv?
-         :latency-dist    (latency-dist latency)
-         :p-loss          0
-         :partitions      {}
-         :next-client-id  -1
-         :next-message-id (atom -1)}))
+  "Construct a new network. Options:
+
+    :latency          A latency specification map (see
+                      maelstrom.net.link/latency-dist)
+    :bandwidth        Bytes of message body per second each link can carry,
+                      unless the link model says otherwise. nil or 0 means
+                      unlimited.
+    :link-model       A link model spec (see maelstrom.net.link), giving
+                      individual links their own latency, loss, and
+                      bandwidth. If omitted, every link uses :latency and
+                      :bandwidth.
+    :queue-capacity   How many messages may wait in each node's inbound
+                      queue. If omitted, queues are unbounded.
+    :overflow         What to do with messages for a full queue.
+    :flaky-p-loss     The probability of losing any given message while the
+                      network is flaky. Defaults to 0.5.
+    :log-send?        Whether to log every message sent
+    :log-recv?        Whether to log every message received
+    :partition-mode   When do we decide whether a partition eats a message?
+    :virtual-time?    If true, runs the network on a simulated clock, which
+                      skips ahead whenever every server is idle. Only message
+                      latencies are simulated; see maelstrom.net.scheduler.
+    :seed             A long used to seed the network's random number
+                      generator. If omitted, picks one at random.
+
+  Partition modes are:
+
+    :recv       Messages are checked when delivered. A message sent during a
+                partition which heals before the message arrives is delivered.
+    :send       Messages are checked when sent, and doomed messages are never
+                enqueued. Messages already in flight when a partition begins
+                still arrive.
+    :in-flight  Messages are checked both when sent and when delivered, so
+                they are dropped if a partition exists at either time.
+
+  The default is :recv. Overflow policies are:
+
+    :drop-tail  A message arriving at a full queue is dropped.
+    :drop-head  A message arriving at a full queue pushes out the oldest
+                message waiting there.
+    :block      Senders wait until their recipient has room. Messages in
+                flight count against the recipient's capacity, so a node
+                can't outrun its recipients by sending over slow links.
+
+  The default is :drop-tail."
+  [{:keys [latency bandwidth link-model log-send? log-recv? partition-mode
+           virtual-time? seed queue-capacity overflow flaky-p-loss]
+    :or   {partition-mode :recv
+           overflow       :drop-tail
+           flaky-p-loss   0.5}}]
+  (assert (#{:recv :send :in-flight} partition-mode)
+          (str "Unknown partition mode " (pr-str partition-mode)))
+  (assert (#{:drop-tail :drop-head :block} overflow)
+          (str "Unknown overflow policy " (pr-str overflow)))
+  (let [model (link/model link-model latency bandwidth)]
+    (map->Net {:nodes           (node/registry)
+               :queues          (volatile! (object-array 0))
+               :deliverers      (volatile! (object-array 0))
+               :permits         (volatile! (object-array 0))
+               :queue-capacity  queue-capacity
+               :overflow        overflow
+               :flaky-p-loss    flaky-p-loss
+               :scheduler       (if virtual-time?
+                                  (sched/virtual-scheduler)
+                                  (sched/realtime-scheduler))
+               :links           (volatile! (object-array 0))
+               :link-model      model
+               ; Selectors for specific nodes and regions can't match nil, so
+               ; this is whatever the spec says about links in general.
+               :default-link    (model nil nil)
+               :seed            (long (or seed (rand-int Integer/MAX_VALUE)))
+               :rngs            (volatile! (object-array 0))
+               ; This will be filled in by the OS adapter--we need this to
+               ; manage the disk file open/close lifecycle, and because we'll
+               ; need a test map with a start time.
+               :journal         (volatile! nil)
+               :faults          (atom (map->Faults
+                                        {:latency-scale  1.0
+                                         :p-loss         0.0
+                                         :p-duplicate    0.0
+                                         :max-duplicates 1
+                                         :p-reorder      0.0
+                                         :reorder-window 0
+                                         :partitions     (object-array 0)}))
+               :log-send?       log-send?
+               :log-recv?       log-recv?
+               :partition-on-send? (not= :recv partition-mode)
+               :partition-on-recv? (not= :send partition-mode)
+               :next-client-id  (AtomicLong. 0)
+               :next-message-id (AtomicLong. 0)})))
+
+(defn update-faults!
+  "Atomically updates the network's fault configuration by applying (f faults
+  & args)."
+  [net f & args]
+  (apply swap! (:faults net) f args)
+  net)
+
+(defn next-client-id!
+  "Allocates a new client number."
+  [net]
+  (.getAndIncrement ^AtomicLong (:next-client-id net)))
+
+(defn node-not-found!
+  "Throws an error for a node which isn't in the network."
+  [node]
+  (throw+ {:type      ::node-not-found
+           :name      :node-not-found
+           :code      1
+           :definite? true}
+          nil
+          (str "No such node in network: " (pr-str node))))
+
+(defn node-number
+  "Takes a node id or node number, and returns its node number. Throws if the
+  node has never been part of the network."
+  [net node]
+  (or (node/number (:nodes net) node)
+      (node-not-found! node)))
+
+(defn partition-add
+  "Takes a partition matrix and returns a copy in which receiver dest drops
+  messages from src. Both are node numbers."
+  [^objects partitions ^long src ^long dest]
+  (let [^objects p (Arrays/copyOf partitions
+                                  (int (max (alength partitions)
+                                            (inc dest))))
+        b          (if-let [b (aget p dest)]
+                     (.clone ^BitSet b)
+                     (BitSet.))]
+    (.set ^BitSet b src)
+    (aset p dest b)
+    p))
+
+(defn partition-grudge
+  "Takes a partition matrix and a grudge: a collection of [dest srcs] pairs,
+  where each receiver dest drops messages from every src in srcs. All are
+  node numbers. Returns a copy of the matrix with the whole grudge applied."
+  [^objects partitions grudge]
+  (reduce (fn [p [dest srcs]]
+            (reduce (fn [p src] (partition-add p src dest)) p srcs))
+          partitions
+          grudge))
+
+(defn partitioned?
+  "Does receiver dest drop messages from src, under the given partition
+  matrix? Both are node numbers."
+  [^objects partitions ^long src ^long dest]
+  (and (< dest (alength partitions))
+       (let [b (aget partitions dest)]
+         (and (some? b) (.get ^BitSet b src)))))
 
 (defn jepsen-net
   "A jepsen.net/Net which controls this network."
   [net]
   (reify net/Net
     (drop! [_ test src dest]
-      (swap! net update-in [:partitions dest] conj src))
+      (update-faults! net update :partitions partition-add
+                      (node/intern! (:nodes net) src)
+                      (node/intern! (:nodes net) dest)))
 
     (heal! [_ test]
-      (swap! net assoc :partitions {}))
+      (update-faults! net assoc :partitions (object-array 0)))
 
     (slow! [_ test]
-      (swap! net update :latency-dist scale-dist 10))
+      (update-faults! net assoc :latency-scale 10.0))
 
     (fast! [_ test]
-      (swap! net update :latency-dist unscale-dist))
+      (update-faults! net assoc :latency-scale 1.0))
 
     (flaky! [_ test]
-      (swap! net assoc :p-loss 0.5))))
+      (update-faults! net assoc :p-loss (:flaky-p-loss net)))
+
+    net/PartitionAll
+    (drop-all! [_ test grudge]
+      ; Jepsen would otherwise call drop! once per pair, concurrently, and
+      ; receivers could see a partition half-applied. We build the whole
+      ; matrix, and publish it at once.
+      (let [nodes  (:nodes net)
+            grudge (mapv (fn [[dest srcs]]
+                           [(node/intern! nodes dest)
+                            (mapv (partial node/intern! nodes) srcs)])
+                         grudge)]
+        (update-faults! net update :partitions partition-grudge grudge)))))
+
+(defn duplicate!
+  "Starts duplicating messages: each message gets between 1 and
+  max-duplicates extra copies with probability p."
+  [net p max-duplicates]
+  (assert (pos? max-duplicates))
+  (update-faults! net assoc :p-duplicate p :max-duplicates max-duplicates))
+
+(defn stop-duplicating!
+  "Stops duplicating messages."
+  [net]
+  (update-faults! net assoc :p-duplicate 0.0))
+
+(defn reorder!
+  "Starts reordering messages: with probability p, each message is held back
+  for up to window ms longer than usual, so that messages sent after it can
+  arrive first."
+  [net p window]
+  (update-faults! net assoc :p-reorder p :reorder-window window))
+
+(defn stop-reordering!
+  "Stops reordering messages."
+  [net]
+  (update-faults! net assoc :p-reorder 0.0))
+
+(defn idle?
+  "Has every server and service in the network consumed every message
+  delivered to it? We ignore clients: a client's queue can hold replies to
+  requests which already timed out, which nobody will ever read, and client
+  links have no latency for the clock to skip anyway."
+  [net]
+  (let [^objects qs @(:queues net)]
+    (loop [i 0]
+      (if (= i (alength qs))
+        true
+        (let [q (aget qs i)]
+          (if (or (nil? q)
+                  (node/client? i)
+                  (.isEmpty ^BlockingQueue q))
+            (recur (inc i))
+            false))))))
 
 (defn jepsen-os
   "A jepsen.os/OS used to start and stop the network."
@@ -127,120 +362,325 @@
     (setup! [this test node]
       (when (= node (jepsen/primary test))
         (info "Starting Maelstrom network")
-        (swap! net assoc :journal (j/journal test))))
+        (vreset! (:journal net) (j/journal test (:nodes net)))
+        (sched/start! (:scheduler net) (partial idle? net))))
 
     (teardown! [this test node]
       (when (= node (jepsen/primary test))
-        (when-let [j (:journal @net)]
+        (when-let [j @(:journal net)]
           (info "Shutting down Maelstrom network")
+          (sched/stop! (:scheduler net))
           (j/close! j))))))
 
+(defn set-slot!
+  "Takes a network, a key (e.g. :queues) for a volatile array indexed by node
+  number, a node number n, and a value. Sets that node's slot to x, by
+  replacing the array with a copy."
+  [net k ^long n x]
+  (let [v (get net k)]
+    (locking v
+      (let [^objects xs  @v
+            ^objects xs' (Arrays/copyOf xs (int (max (alength xs) (inc n))))]
+        (aset xs' n x)
+        (vreset! v xs')))))
+
+(defn slot
+  "Returns the value in a network's array k for node number n, or nil."
+  [net k ^long n]
+  (let [^objects xs @(get net k)]
+    (when (< n (alength xs))
+      (aget xs n))))
+
+(defn link-index
+  "Links are indexed by node number, less the client bit: clients don't have
+  links, so servers and services can share a dense index space."
+  ^long [^long n]
+  (bit-shift-right n 1))
+
+(defn link-matrix
+  "Computes a fresh link matrix for every server and service we've registered,
+  using the network's link model. Nodes are added rarely, and only at the
+  start of a test, so we simply recompute the whole thing."
+  [net]
+  (let [^objects names @(:names (:nodes net))
+        numbers      (filterv (fn [n]
+                                (and (aget names n)
+                                     (not (node/client? n))))
+                              (range (alength names)))
+        size         (if (seq numbers) (inc (link-index (peek numbers))) 0)
+        model        (:link-model net)
+        rows         (object-array size)]
+    (doseq [src numbers]
+      (let [row (object-array size)]
+        (doseq [dest numbers]
+          (aset row (link-index dest) (model (aget names src)
+                                             (aget names dest))))
+        (aset rows (link-index src) row)))
+    rows))
+
+(defn deliverer
+  "Takes a network and a node's ready queue, and returns a function which
+  delivers a message to that queue, applying the network's overflow policy.
+  Under :block, senders have already made room, so we simply put."
+  [net ^BlockingQueue q]
+  (if (or (nil? (:queue-capacity net))
+          (= :block (:overflow net)))
+    (fn deliver [message]
+      (.put q message))
+    (case (:overflow net)
+      :drop-tail
+      (fn deliver [message]
+        (when-not (.offer q message)
+          (j/log-overflow! @(:journal net) message)))
+
+      :drop-head
+      (fn deliver [message]
+        (loop []
+          (when-not (.offer q message)
+            (when-let [victim (.poll q)]
+              (j/log-overflow! @(:journal net) victim))
+            (recur)))))))
+
 (defn add-node!
-  "Adds a node to the network."
-  [net node-id]
-  (assert (string? node-id) (str "Node id " (pr-str node-id)
-                                 " must be a string"))
-  (swap! net assoc-in [:queues node-id]
-         (PriorityBlockingQueue. 11 latency-compare))
-  net)
+  "Adds a node to the network. Takes an optional kind (see
+  maelstrom.net.node/kinds); if none is given, infers one from the node id."
+  ([net node-id]
+   (add-node! net node-id (node/infer-kind node-id)))
+  ([net node-id kind]
+   (assert (string? node-id) (str "Node id " (pr-str node-id)
+                                  " must be a string"))
+   (let [n (node/intern! (:nodes net) node-id kind)]
+     ; A node which comes back after being removed picks up its random
+     ; stream where it left off.
+     (when-not (slot net :rngs n)
+       (set-slot! net :rngs n (u/rng (:seed net) node-id)))
+     (when-not (node/client? n)
+       (let [links (:links net)]
+         (locking links
+           (vreset! links (link-matrix net)))))
+     (let [capacity (:queue-capacity net)
+           q        (if (and capacity (not= :block (:overflow net)))
+                      (LinkedBlockingQueue. (int capacity))
+                      (LinkedBlockingQueue.))]
+       (when (and capacity (= :block (:overflow net)))
+         (set-slot! net :permits n (Semaphore. (int capacity))))
+       (set-slot! net :deliverers n (deliverer net q))
+       (set-slot! net :queues n q)))
+   net))
 
 (defn remove-node!
   "Removes a node from the network."
   [net node-id]
-  (swap! net update :queues dissoc node-id)
+  (set-slot! net :queues (node-number net node-id) nil)
   net)
 
-(defn ^PriorityBlockingQueue queue-for
-  "Returns the queue for a particular recipient node."
+(defn ^BlockingQueue queue-for
+  "Returns the ready queue for a particular recipient node, given its id or
+  number."
   [net node]
-  (if-let [q (-> net deref :queues (get node))]
-    q
-    (throw+ {:type      ::node-not-found
-             :name      :node-not-found
-             :code      1
-             :definite? true}
-            nil
-            (str "No such node in network: " (pr-str node)))))
+  (or (slot net :queues (node-number net node))
+      (node-not-found! node)))
 
 (defn validate-msg
   "Checks to make sure a message is well-formed and deliverable on the given
-  deref'ed network. Returns msg if legal, otherwise throws."
+  network. Returns msg if legal, otherwise throws."
   [m net]
-  (let [m (msg/validate m)
-        queues (get net :queues)]
-    (assert (get queues (:src m))
-            (str "Invalid source for message " (pr-str m)))
-    (assert (get queues (:dest m))
-            (str "Invalid dest for message " (pr-str m)))
+  (let [m (msg/validate m)]
+    (queue-for net (:src m))
+    (queue-for net (:dest m))
     m))
 
-(defn ^Long latency-for
-  "Computes a latency, in ms, for a given message. We want our clients to have
-  effectively zero latency whenever possible--as if colocated with nodes.
-  Adding latency to them tends to *hide* consistency anomalies, so we avoid it.
-  Later we might want to add an option for a separate client latency
-  distribution, just for latency simulation purposes?"
+(defn external
+  "Converts a Message to the form the outside world sees: a map whose :src and
+  :dest are node ids, rather than node numbers."
   [net message]
-  (if (u/involves-client? message)
-    0
-    (long (draw (:latency-dist net)))))
+  (let [nodes (:nodes net)]
+    {:id    (:id message)
+     :src   (node/id nodes (:src message))
+     :dest  (node/id nodes (:dest message))
+     :body  (:body message)}))
+
+(def client-link
+  "We want our clients to have effectively zero latency whenever possible--as if
+  colocated with nodes. Adding latency to them tends to *hide* consistency
+  anomalies, so we avoid it. Later we might want to add an option for a
+  separate client latency distribution, just for latency simulation purposes?"
+  (link/link (link/constant-dist 0) 0.0))
+
+(defn ^maelstrom.net.link.Link link-for
+  "Returns the Link a message travels over: a lookup in the link matrix."
+  [net ^maelstrom.net.message.Message message]
+  (if (msg/involves-client? message)
+    client-link
+    (let [^objects rows @(:links net)
+          src          (link-index (.src message))
+          dest         (link-index (.dest message))]
+      (or (when (< src (alength rows))
+            (let [^objects row (aget rows src)]
+              (when (and row (< dest (alength row)))
+                (aget row dest))))
+          (:default-link net)))))
+
+(defn ^Long latency-for
+  "Computes a latency, in ms, for a message over the given link, using a
+  Faults snapshot and the sender's random stream."
+  [faults ^maelstrom.net.link.Link link rng]
+  (long (* (double (:latency-scale faults))
+           (.draw ^maelstrom.net.link.Distribution (.latency link) rng))))
+
+(defn lost?
+  "Does a message over the given link get lost? Messages are lost either by
+  their link, or by a flaky network."
+  [faults ^maelstrom.net.link.Link link ^SplittableRandom rng]
+  (let [a (.p-loss link)
+        b (double (:p-loss faults))]
+    (< (.nextDouble rng) (- (+ a b) (* a b)))))
+
+(defn body-size
+  "How many bytes does a message's body take up on the wire? We only encode
+  the body for links with limited bandwidth; on others size doesn't matter,
+  and we return 0."
+  ^long [^maelstrom.net.link.Link link message]
+  (if (pos? (.bandwidth link))
+    (let [^String json (json/generate-string (:body message))]
+      (alength (.getBytes json StandardCharsets/UTF_8)))
+    0))
+
+(defn reserve!
+  "Under the :block overflow policy, waits until there's room for another
+  message to node number n, and takes it. Returns false if n leaves the
+  network while we wait, true otherwise."
+  [net ^long n]
+  (if-let [^Semaphore permits (slot net :permits n)]
+    (loop []
+      (cond (.tryAcquire permits 100 TimeUnit/MILLISECONDS) true
+            (nil? (slot net :queues n))                     false
+            true                                            (recur)))
+    true))
+
+(defn reorder-nanos
+  "How many extra nanoseconds should we hold a message back, given a Faults
+  snapshot and the sender's random stream? Draws nothing unless reordering
+  is on."
+  ^long [faults ^SplittableRandom rng]
+  (let [p (double (:p-reorder faults))]
+    (if (and (pos? p) (< (.nextDouble rng) p))
+      (long (* (.nextDouble rng) (double (:reorder-window faults)) 1e6))
+      0)))
+
+(defn duplicates
+  "How many extra copies of a message should we deliver, given a Faults
+  snapshot and the sender's random stream? Draws nothing unless duplication
+  is on."
+  ^long [faults ^SplittableRandom rng]
+  (let [p (double (:p-duplicate faults))]
+    (if (and (pos? p) (< (.nextDouble rng) p))
+      (.nextLong rng 1 (inc (long (:max-duplicates faults))))
+      0)))
+
+(defn enqueue!
+  "Delivers a message after delay-ns nanoseconds, by way of the scheduler, or
+  right away if there's no delay."
+  [s now delay-ns message deliver]
+  (if (pos? delay-ns)
+    ; Hand off to the scheduler, which delivers it once it's due
+    (sched/schedule! s (+ now delay-ns) message deliver)
+    ; Deliverable right away
+    (deliver message)))
 
 (defn send!
   "Sends a message (either a map or Message) into the network. Message must
-  contain :src and :dest keys, both node IDs. Generates an :id for the message.
-  Mutates and returns the network."
+  contain :src and :dest keys, which may be node ids or node numbers.
+  Generates an :id for the message. Mutates and returns the network."
   [net message]
-  (let [{:keys [log-send? p-loss journal next-message-id] :as n} @net
+  (let [faults  @(:faults net)
+        journal @(:journal net)
         ; Assign a new message ID for our internal bookkeeping, and construct a
         ; Message object.
-        message (-> (msg/message (swap! next-message-id inc)
-                                 (:src message)
-                                 (:dest message)
-                                 (:body message))
-                    (validate-msg n))
-        deadline (-> n
-                     (latency-for message)
-                     (* 1000000) ; ms -> ns
-                     (+ (System/nanoTime)))]
+        ^maelstrom.net.message.Message message
+        (-> (msg/message (.getAndIncrement
+                           ^AtomicLong (:next-message-id net))
+                         (node-number net (:src message))
+                         (node-number net (:dest message))
+                         (:body message))
+            (validate-msg net))
+        ; Only the sender's own thread sends from a given node, so its
+        ; stream is uncontended.
+        rng     (slot net :rngs (.src message))
+        link    (link-for net message)
+        latency (latency-for faults link rng)]
 
     ; Journal
     (j/log-send! journal message)
 
     ; Log
-    (when log-send? (info :send (pr-str message)))
+    (when (:log-send? net) (info :send (pr-str (external net message))))
 
     ; Send
-    (if (< (rand) p-loss)
-      net ; whoops, lost ur packet
-      (let [src  (:src message)
-            dest (:dest message)
-            q    (queue-for net dest)]
-        (.put q {:deadline deadline
-                 :message  message})
-        net))))
+    (cond (lost? faults link rng)
+          net ; whoops, lost ur packet
+
+          (and (:partition-on-send? net)
+               (partitioned? (:partitions faults)
+                             (.src message)
+                             (.dest message)))
+          ; Doomed; don't bother putting it in flight.
+          (do (j/log-drop! journal message)
+              net)
+
+          (not (reserve! net (.dest message)))
+          ; The recipient left while we waited for room
+          (do (j/log-overflow! journal message)
+              net)
+
+          true
+          (let [deliver  (slot net :deliverers (.dest message))
+                s        (:scheduler net)
+                now      (sched/now s)
+                ; Wait for the link to transmit the message, then for its
+                ; latency.
+                delay-ns (+ (link/transmit! link now (body-size link message))
+                            (* latency 1000000))]
+            (if (msg/involves-client? message)
+              ; Clients expect exactly-once, immediate delivery: a duplicated
+              ; request would be applied twice.
+              (enqueue! s now delay-ns message deliver)
+              (do (enqueue! s now (+ delay-ns (reorder-nanos faults rng))
+                            message deliver)
+                  ; Copies take up room too, and are held back
+                  ; independently.
+                  (dotimes [_ (duplicates faults rng)]
+                    (when (reserve! net (.dest message))
+                      (enqueue! s now (+ delay-ns (reorder-nanos faults rng))
+                                message deliver)))))
+            net))))
 
 (defn recv!
-  "Receive a message for the given node. Returns the message, and mutates the
-  network. Returns `nil` if no message available in timeout-ms milliseconds."
+  "Receive a message for the given node, by id or number. Returns the Message,
+  and mutates the network. Returns `nil` if no message available in timeout-ms
+  milliseconds. Messages only become available once their latency has
+  elapsed, so we never have to wait on any particular message."
   [net node timeout-ms]
-  ; Fetch a message
-  (when-let [envelope (.poll (queue-for net node)
-                             timeout-ms TimeUnit/MILLISECONDS)]
-    (let [{:keys [deadline message]} envelope
-          dt (/ (- deadline (System/nanoTime)) 1e6)
-          {:keys [log-recv? partitions journal]} @net]
-
-      (when-not (some #{(:src message)} (get partitions node))
-        ; No partition, OK, let's go!
-        (do (when (pos? dt)
-              ; This message isn't due for a bit; block until it's ready
-              (Thread/sleep dt))
-
-            ; Log to console
-            (when log-recv? (info :recv (pr-str message)))
-
-            ; Journal
-            (j/log-recv! journal message)
-
-            ; And deliver!
-            message)))))
+  (let [n (node-number net node)]
+    ; Fetch a message
+    (when-let [^maelstrom.net.message.Message message
+               (.poll (queue-for net n) timeout-ms TimeUnit/MILLISECONDS)]
+      (let [journal @(:journal net)]
+        ; This message no longer counts against our capacity
+        (when-let [^Semaphore permits (slot net :permits n)]
+          (.release permits))
+        (if (and (:partition-on-recv? net)
+                 (partitioned? (:partitions @(:faults net)) (.src message) n))
+          ; Partitioned; this message never arrives.
+          (do (j/log-drop! journal message)
+              nil)
+          ; No partition, OK, let's go!
+          (do ; Log to console
+              (when (:log-recv? net)
+                (info :recv (pr-str (external net message))))
+
+              ; Journal
+              (j/log-recv! journal message)
+
+              ; And deliver!
+              message))))))
@@ -0,0 +1,175 @@
+(ns maelstrom.net.blocks
+  "Journal stripes are stored as a sequence of independently compressed
+  blocks, plus an index which describes each block: where it lives in the
+  stripe, how many events it holds, and the range of event ids and times it
+  covers. Readers use the index to skip blocks they don't need without
+  decompressing them.
+
+  A stripe N is two files:
+
+    N.blocks  Compressed blocks, back to back.
+    N.index   A long codec (see codecs), then eight longs per block:
+              offset, length, raw-length, event-count, min-id, max-id,
+              min-time, max-time.
+
+  This namespace deals only in bytes; what goes in a block is up to
+  maelstrom.net.journal."
+  (:require [clojure.java.io :as io])
+  (:import (java.io DataInputStream
+                    DataOutputStream
+                    EOFException
+                    File
+                    OutputStream
+                    RandomAccessFile)
+           (java.util.zip Deflater
+                          Inflater)))
+
+(def codecs
+  "Compression codecs, and the codes we store for them in the index."
+  {:none    0
+   :deflate 1})
+
+(defn data-file
+  "The file for a stripe's blocks, in directory dir."
+  ^File [dir stripe]
+  (io/file dir (str stripe ".blocks")))
+
+(defn index-file
+  "The file for a stripe's index, in directory dir."
+  ^File [dir stripe]
+  (io/file dir (str stripe ".index")))
+
+(defn stripes
+  "Returns the sorted stripe numbers with an index in directory dir."
+  [dir]
+  (->> (.listFiles (io/file dir))
+       (keep (fn [^File f]
+               (when-let [[_ n] (re-find #"^(\d+)\.index$" (.getName f))]
+                 (Long/parseLong n))))
+       sort))
+
+; Where a block lives in its stripe, and what's in it.
+(defrecord Block [^long stripe
+                  ^long offset
+                  ^long length
+                  ^long raw-length
+                  ^long event-count
+                  ^long min-id
+                  ^long max-id
+                  ^long min-time
+                  ^long max-time])
+
+;; Writing
+
+; offset is a one-element array of how many bytes we've written to data.
+; scratch is a buffer for compressed output.
+(deftype BlockWriter [codec
+                      ^OutputStream data
+                      ^DataOutputStream index
+                      ^Deflater deflater
+                      ^longs offset
+                      ^bytes scratch])
+
+(defn writer
+  "Opens a writer for a new stripe in directory dir, compressing blocks with
+  the given codec."
+  [dir stripe codec]
+  (assert (contains? codecs codec)
+          (str "Unknown journal codec " (pr-str codec)))
+  (let [data  (data-file dir stripe)
+        index (index-file dir stripe)
+        _     (io/make-parents data)
+        index (DataOutputStream. (io/output-stream index))]
+    (.writeLong index (long (codecs codec)))
+    (BlockWriter. codec
+                  (io/output-stream data)
+                  index
+                  (Deflater. Deflater/BEST_SPEED)
+                  (long-array 1)
+                  (byte-array 65536))))
+
+(defn deflate!
+  "Compresses the first raw-length bytes of raw to out, using a writer's
+  deflater. Returns the number of bytes written."
+  [^BlockWriter w ^bytes raw raw-length]
+  (let [^Deflater d (.deflater w)
+        ^bytes buf  (.scratch w)
+        ^OutputStream out (.data w)]
+    (.reset d)
+    (.setInput d raw 0 (int raw-length))
+    (.finish d)
+    (loop [written 0]
+      (if (.finished d)
+        written
+        (let [n (.deflate d buf)]
+          (.write out buf 0 n)
+          (recur (+ written n)))))))
+
+(defn write-block!
+  "Writes a block of raw-length bytes from raw, containing event-count events
+  with the given ranges of ids and times, and records it in the index."
+  [^BlockWriter w ^bytes raw raw-length event-count min-id max-id min-time
+   max-time]
+  (let [^longs offset (.offset w)
+        length        (case (.codec w)
+                        :none    (do (.write ^OutputStream (.data w)
+                                             raw 0 (int raw-length))
+                                     raw-length)
+                        :deflate (deflate! w raw raw-length))
+        ^DataOutputStream index (.index w)]
+    (doseq [x [(aget offset 0) length raw-length event-count
+               min-id max-id min-time max-time]]
+      (.writeLong index (long x)))
+    (aset offset 0 (+ (aget offset 0) (long length)))
+    w))
+
+(defn close-writer!
+  "Flushes and closes a block writer."
+  [^BlockWriter w]
+  (.close ^OutputStream (.data w))
+  (.close ^DataOutputStream (.index w))
+  (.end ^Deflater (.deflater w)))
+
+;; Reading
+
+(defn read-index
+  "Reads a stripe's index. Returns {:codec codec, :blocks [block ...]}."
+  [dir stripe]
+  (with-open [in (DataInputStream. (io/input-stream (index-file dir stripe)))]
+    (let [code   (.readLong in)
+          codec  (some (fn [[codec c]] (when (= c code) codec)) codecs)]
+      {:codec  codec
+       :blocks (loop [blocks (transient [])]
+                 (let [block (try (Block. stripe
+                                          (.readLong in) (.readLong in)
+                                          (.readLong in) (.readLong in)
+                                          (.readLong in) (.readLong in)
+                                          (.readLong in) (.readLong in))
+                                  (catch EOFException e
+                                    nil))]
+                   (if block
+                     (recur (conj! blocks block))
+                     (persistent! blocks))))})))
+
+(defn read-block
+  "Reads a block's raw bytes from an open RandomAccessFile of its stripe's
+  data, decompressing them with codec."
+  ^bytes [^RandomAccessFile data codec ^Block block]
+  (let [stored (byte-array (.length block))]
+    (.seek data (.offset block))
+    (.readFully data stored)
+    (case codec
+      :none    stored
+      :deflate (let [raw (byte-array (.raw-length block))
+                     i   (Inflater.)]
+                 (try
+                   (.setInput i stored)
+                   (loop [n 0]
+                     (when (< n (alength raw))
+                       (when (.finished i)
+                         (throw (IllegalStateException.
+                                  (str "Journal block " (pr-str block)
+                                       " is shorter than its index says"))))
+                       (recur (+ n (.inflate i raw n (- (alength raw) n))))))
+                   raw
+                   (finally (.end i)))))))
@@ -0,0 +1,347 @@
+(ns maelstrom.net.columns
+  "A columnar, memory-mapped format for the network journal.
+
+  Fressian stripes are compact, but reading them back means materializing
+  every Event, Message, and body, even when all we want is to count sends. In
+  this format, each field of an event goes in its own file of fixed-width
+  values, so analyses which only need a few fields can run as tight loops
+  over memory-mapped columns:
+
+    time.col         long   linear time, in nanos
+    type.col         byte   event type; see type-codes
+    src.col          int    source node number
+    dest.col         int    destination node number
+    msg-id.col       long   message id
+    body-offset.col  long   where the message body starts in body.heap
+
+  An event's id is its row number: the journal's writer assigns ids densely,
+  in the order it writes events, so there's no need to store them. Bodies are
+  encoded separately, each as an int length followed by a standalone Fressian
+  object, into body.heap. A message's send, receive, and any drops all have
+  the same body, so rows for the same message share one copy of it, as long
+  as they're written close enough together; see body-cache-size. We only
+  decode a body when someone asks for it.
+
+  Files may be larger than a single mapped ByteBuffer can address, so we map
+  each in segments of segment-size bytes, and address them by long offsets."
+  (:require [clojure.java.io :as io]
+            [maelstrom.net.node :as node])
+  (:import (java.io ByteArrayOutputStream
+                    DataOutputStream
+                    File
+                    RandomAccessFile)
+           (java.nio ByteBuffer)
+           (java.nio.channels FileChannel$MapMode)
+           (java.util BitSet
+                      HashMap)))
+
+(def type-codes
+  "Event types, and the byte codes we store for them."
+  {:send      0
+   :recv      1
+   :drop      2
+   :overflow  3})
+
+(def code-types
+  "A vector of event types, indexed by byte code."
+  (reduce (fn [v [type code]] (assoc v code type))
+          (vec (repeat (count type-codes) nil))
+          type-codes))
+
+(defn column-file
+  "The file for a column (or :body-heap) in a columns directory."
+  ^File [dir column]
+  (io/file dir (if (= :body-heap column)
+                 "body.heap"
+                 (str (name column) ".col"))))
+
+;; Writing
+
+(def body-cache-size
+  "How many recent message ids do we remember the heap offsets of bodies for?
+  A power of two."
+  65536)
+
+; One DataOutputStream per column, plus the body heap, and a one-element long
+; array of how many bytes we've written to the heap. cached-ids and
+; cached-offsets are a direct-mapped cache, indexed by message id modulo
+; body-cache-size, of where we wrote recent messages' bodies.
+(deftype ColumnWriter [^DataOutputStream time
+                       ^DataOutputStream type
+                       ^DataOutputStream src
+                       ^DataOutputStream dest
+                       ^DataOutputStream msg-id
+                       ^DataOutputStream body-offset
+                       ^DataOutputStream body-heap
+                       ^longs heap-size
+                       ^longs cached-ids
+                       ^longs cached-offsets])
+
+(defn writer
+  "Opens a writer which creates a new set of columns in directory dir."
+  [dir]
+  (let [out (fn [column]
+              (let [f (column-file dir column)]
+                (io/make-parents f)
+                (DataOutputStream. (io/output-stream f))))]
+    (ColumnWriter. (out :time)
+                   (out :type)
+                   (out :src)
+                   (out :dest)
+                   (out :msg-id)
+                   (out :body-offset)
+                   (out :body-heap)
+                   (long-array 1)
+                   ; No message has this id
+                   (long-array body-cache-size Long/MIN_VALUE)
+                   (long-array body-cache-size))))
+
+(defn body-offset
+  "Returns where we wrote the body for the given message id, if we wrote it
+  recently enough to remember, or -1."
+  ^long [^ColumnWriter w ^long msg-id]
+  (let [i (bit-and msg-id (dec body-cache-size))]
+    (if (= msg-id (aget ^longs (.cached-ids w) i))
+      (aget ^longs (.cached-offsets w) i)
+      -1)))
+
+(defn append-body!
+  "Copies a message's encoded body, a ByteArrayOutputStream, to the heap, and
+  returns its offset."
+  ^long [^ColumnWriter w ^long msg-id ^ByteArrayOutputStream body]
+  (let [^longs heap-size (.heap-size w)
+        ^DataOutputStream heap (.body-heap w)
+        offset           (aget heap-size 0)
+        i                (bit-and msg-id (dec body-cache-size))]
+    (.writeInt heap (.size body))
+    (.writeTo body heap)
+    (aset heap-size 0 (+ offset 4 (.size body)))
+    (aset ^longs (.cached-ids w) i msg-id)
+    (aset ^longs (.cached-offsets w) i offset)
+    offset))
+
+(defn append!
+  "Appends a single row to a column writer. Takes the offset of the message's
+  body in the heap; see body-offset and append-body!."
+  [^ColumnWriter w time type src dest msg-id body-offset]
+  (.writeLong ^DataOutputStream (.time w) (long time))
+  (.writeByte ^DataOutputStream (.type w) (int (type-codes type)))
+  (.writeInt  ^DataOutputStream (.src w) (int src))
+  (.writeInt  ^DataOutputStream (.dest w) (int dest))
+  (.writeLong ^DataOutputStream (.msg-id w) (long msg-id))
+  (.writeLong ^DataOutputStream (.body-offset w) (long body-offset))
+  w)
+
+(defn close-writer!
+  "Flushes and closes a column writer."
+  [^ColumnWriter w]
+  (doseq [^DataOutputStream out [(.time w) (.type w) (.src w) (.dest w)
+                                 (.msg-id w) (.body-offset w) (.body-heap w)]]
+    (.close out)))
+
+;; Reading
+
+(def column-names
+  "Every column, and the body heap."
+  [:time :type :src :dest :msg-id :body-offset :body-heap])
+
+(def segment-size
+  "How many bytes of a file do we map in each ByteBuffer? A power of two, so
+  that fixed-width values never straddle segments, and no more than a
+  ByteBuffer can address."
+  (bit-shift-left 1 30))
+
+; A read-only file, mapped as an array of ByteBuffers of segment-size bytes
+; each (but the last), and its total size.
+(deftype Mapped [^objects segments ^long size])
+
+(defn map-file
+  "Memory-maps a file, read-only, in segments."
+  ^Mapped [^File f]
+  (with-open [raf (RandomAccessFile. f "r")]
+    (let [ch   (.getChannel raf)
+          size (.size ch)]
+      (Mapped. (->> (range 0 size segment-size)
+                    (map (fn [^long start]
+                           (.map ch FileChannel$MapMode/READ_ONLY start
+                                 (min (long segment-size) (- size start)))))
+                    object-array)
+               size))))
+
+(defn segment
+  "The segment of a mapped file which holds the given offset."
+  ^ByteBuffer [^Mapped m ^long offset]
+  (aget ^objects (.segments m) (int (quot offset (long segment-size)))))
+
+(defn get-byte
+  "Reads a byte at a long offset in a mapped file."
+  ^long [^Mapped m ^long offset]
+  (long (.get (segment m offset) (int (rem offset (long segment-size))))))
+
+(defn get-int
+  "Reads an int at a long offset in a mapped file. The offset must be a
+  multiple of 4."
+  ^long [^Mapped m ^long offset]
+  (long (.getInt (segment m offset) (int (rem offset (long segment-size))))))
+
+(defn get-long
+  "Reads a long at a long offset in a mapped file. The offset must be a
+  multiple of 8."
+  ^long [^Mapped m ^long offset]
+  (.getLong (segment m offset) (int (rem offset (long segment-size)))))
+
+(defn get-bytes
+  "Copies n bytes starting at a long offset in a mapped file, which may span
+  segments."
+  ^bytes [^Mapped m ^long offset ^long n]
+  (let [bytes (byte-array n)]
+    (loop [copied 0]
+      (when (< copied n)
+        (let [offset (+ offset copied)
+              buf    (.duplicate (segment m offset))
+              start  (rem offset (long segment-size))
+              k      (min (- n copied) (- (.limit buf) start))]
+          (.position buf (int start))
+          (.get buf bytes (int copied) (int k))
+          (recur (+ copied k)))))
+    bytes))
+
+(defn get-int-unaligned
+  "Reads a big-endian int at any offset in a mapped file, even one which
+  straddles segments."
+  ^long [^Mapped m ^long offset]
+  (let [b (get-bytes m offset 4)]
+    (long (.getInt (ByteBuffer/wrap b)))))
+
+(def column-widths
+  "How many bytes each value takes up, in each fixed-width column."
+  {:time 8, :type 1, :src 4, :dest 4, :msg-id 8, :body-offset 8})
+
+(defn body-whole?
+  "Takes a map of column names to Mapped files, and a row number. Is that
+  row's body entirely within the body heap?"
+  [cols ^long i]
+  (let [^Mapped heap (:body-heap cols)
+        offset       (get-long (:body-offset cols) (* 8 i))]
+    (and (<= (+ offset 4) (.size heap))
+         (<= (+ offset 4 (get-int-unaligned heap offset)) (.size heap)))))
+
+(defn row-count
+  "Takes a map of column names to Mapped files, and returns how many whole
+  rows they hold. We flush each column separately, so a journal which didn't
+  close cleanly can have columns of different lengths, and a body heap which
+  ends partway through a body. We take the rows every column has, and whose
+  bodies are whole. A row's body was always written before the row, so once
+  one row's body is whole, so are those of every row before it."
+  ^long [cols]
+  (loop [n (->> column-widths
+                (map (fn [[column width]]
+                       (quot (.size ^Mapped (cols column)) (long width))))
+                (reduce min))]
+    (if (and (pos? n) (not (body-whole? cols (dec n))))
+      (recur (dec n))
+      n)))
+
+; n is the number of rows; see row-count. Each column is a Mapped file.
+(defrecord Columns [^long n time type src dest msg-id body-offset body-heap])
+
+(defn open
+  "Maps the columns in directory dir, or returns nil if there aren't any."
+  [dir]
+  (when (.exists (column-file dir :type))
+    (let [cols (->> column-names
+                    (map (fn [column]
+                           [column (map-file (column-file dir column))]))
+                    (into {}))]
+      (map->Columns
+        (assoc cols :n (row-count cols))))))
+
+(defn time-at
+  "Row i's time."
+  ^long [^Columns c ^long i]
+  (get-long (.time c) (* 8 i)))
+
+(defn type-at
+  "The byte code of row i's type."
+  ^long [^Columns c ^long i]
+  (get-byte (.type c) i))
+
+(defn src-at
+  "Row i's source node number."
+  ^long [^Columns c ^long i]
+  (get-int (.src c) (* 4 i)))
+
+(defn dest-at
+  "Row i's destination node number."
+  ^long [^Columns c ^long i]
+  (get-int (.dest c) (* 4 i)))
+
+(defn msg-id-at
+  "Row i's message id."
+  ^long [^Columns c ^long i]
+  (get-long (.msg-id c) (* 8 i)))
+
+(defn body-bytes
+  "Copies row i's encoded body out of the heap."
+  ^bytes [^Columns c ^long i]
+  (let [heap   (.body-heap c)
+        offset (get-long (.body-offset c) (* 8 i))
+        length (get-int-unaligned heap offset)]
+    (get-bytes heap (+ offset 4) length)))
+
+;; Analysis
+
+; Running totals for one group of events: counts by type code, and a BitSet of
+; message ids.
+(deftype Tally [^longs counts ^BitSet msg-ids])
+
+(defn tally
+  "A fresh, empty tally."
+  []
+  (Tally. (long-array (count type-codes)) (BitSet.)))
+
+(defn tally!
+  "Counts one event in a tally."
+  [^Tally t ^long type ^long msg-id]
+  (let [^longs counts (.counts t)]
+    (aset counts type (inc (aget counts type)))
+    (.set ^BitSet (.msg-ids t) (int msg-id))))
+
+(defn tally->stats
+  "Turns a tally into the same map net.checker/basic-stats produces."
+  [^Tally t]
+  (let [^longs counts (.counts t)]
+    {:send-count     (aget counts (long (type-codes :send)))
+     :recv-count     (aget counts (long (type-codes :recv)))
+     :drop-count     (aget counts (long (type-codes :drop)))
+     :overflow-count (aget counts (long (type-codes :overflow)))
+     :msg-count      (.cardinality ^BitSet (.msg-ids t))}))
+
+(defn stats
+  "Computes the same statistics as net.checker/stats, in a single pass over
+  the type, src, dest, and msg-id columns. Never touches bodies. The checker
+  prefers the totals the journal saves when it closes, so this only runs for
+  columnar journals which didn't close cleanly; see
+  net.checker/journal-stats."
+  [^Columns c]
+  (let [all       (tally)
+        clients   (tally)
+        servers   (tally)
+        drop-code (long (type-codes :drop))
+        drops     (HashMap.)]
+    (dotimes [i (.n c)]
+      (let [type   (type-at c i)
+            src    (src-at c i)
+            dest   (dest-at c i)
+            msg-id (msg-id-at c i)]
+        (tally! all type msg-id)
+        (if (or (node/client? src) (node/client? dest))
+          (tally! clients type msg-id)
+          (tally! servers type msg-id))
+        (when (= drop-code type)
+          (let [k [src dest]]
+            (.put drops k (inc (long (or (.get drops k) 0))))))))
+    {:all             (tally->stats all)
+     :clients         (tally->stats clients)
+     :servers         (tally->stats servers)
+     :partition-drops (into {} drops)}))
@@ -6,22 +6,31 @@
 
   A journal is logically a sequence of events, each of which is a map like
 
-  {:type      :send, :recv
+  {:type      :send, :recv, :drop (for messages eaten by a partition), or
+              :overflow (for messages which didn't fit in a full queue)
    :time      An arbitrary linear timestamp in nanoseconds
    :message   The message exchanged}
 
   Because Maelstrom tests may generate a LOT of messages, these events are
   journaled to disk incrementally, rather than stored entirely in-memory.
-  They're written to `net-messages.fressian` as a series of Fressian objects.
+  They're written to `net-journal/` as a series of Fressian objects, grouped
+  into compressed blocks with an index (see maelstrom.net.blocks), so readers
+  can skip the parts of the journal they don't need.
 
-  To coordinate writes, we spawn a single worker thread which accepts events
-  via a queue, and writes them sequentially to the journal file.
+  Journaling shouldn't slow down message delivery, so threads which send and
+  receive messages only append events to a lock-free ring buffer (see
+  maelstrom.net.ring). A single writer thread drains the ring in batches and
+  serializes them to disk. If the writer falls behind and the ring fills up,
+  we either make event producers wait, or drop events and count how many we
+  dropped; see journal.
 
   This namespace also has a checker which can analyze the journal to see how
   many messages were exchanged, generate statistics, produce lamport diagrams,
   etc."
   (:require [clojure.tools.logging :refer [info warn]]
+            [clojure.set :as set]
             [clojure.data.fressian :as fress]
+            [clojure.edn :as edn]
             [clojure.java.io :as io]
             [fipp.edn :refer [pprint]]
             [jepsen [store :as store]
@@ -29,18 +38,32 @@
                                            nanos->ms
                                            ms->nanos]]]
             [maelstrom.util :as u]
-            [maelstrom.net [message :as msg]]
+            [maelstrom.net [blocks :as blocks]
+                           [columns :as columns]
+                           [merge :as merge]
+                           [message :as msg]
+                           [node :as node]
+                           [ring :as ring]]
             [tesser [core :as t]
                     [math :as tm]
                     [utils :as tu]])
-  (:import (java.io Closeable
+  (:import (java.io ByteArrayInputStream
+                    ByteArrayOutputStream
+                    Closeable
+                    DataOutputStream
                     File
-                    EOFException)
-           (java.util BitSet)
-           (java.util.concurrent ArrayBlockingQueue
-                                 BlockingQueue
-                                 LinkedBlockingQueue)
+                    EOFException
+                    RandomAccessFile)
+           (java.nio ByteBuffer)
+           (java.util ArrayList
+                      Arrays
+                      BitSet)
+           (java.util.concurrent ConcurrentHashMap)
+           (java.util.concurrent.atomic AtomicLong
+                                        LongAdder)
+           (java.util.function Function)
            (java.util.concurrent.locks LockSupport)
+           (maelstrom.net.blocks Block)
            (maelstrom.net.message Message)
            (org.fressian FressianWriter FressianReader)
            (org.fressian.handlers WriteHandler ReadHandler)
@@ -67,51 +90,114 @@
              m)
   (.endList w))
 
+(defn write-event!
+  "Writes an event, with the given id, to a Fressian writer. Events are
+  assigned ids only as the journal's writer thread takes them, so we pass the
+  id separately, rather than allocate a new Event to carry it. Message bodies
+  live apart from events, so that readers which don't care about bodies can
+  skip them without decoding; body is the index of this event's body among
+  its block's bodies. See BlockSink."
+  [^FressianWriter w ^long id ^Event e ^long body]
+  (let [^Message m (.message e)]
+    (.writeTag     w "ev" 4)
+    (.writeInt     w id)
+    (.writeInt     w (.time e))
+    (.writeObject  w (.type e) true)
+    (.writeTag     w "bmsg" 4)
+    (.writeInt     w (.id m))
+    (.writeInt     w (.src m))
+    (.writeInt     w (.dest m))
+    (.writeInt     w body)))
+
 (def write-handlers
   "How should Fressian write different classes?"
-  (-> {maelstrom.net.journal.Event
-       {"ev" (reify WriteHandler
-               (write [_ w e]
-                 (.writeTag     w "ev" 4)
-                 (.writeInt     w (:id e))
-                 (.writeInt     w (:time e))
-                 (.writeObject  w (:type e) true)
-                 (.writeObject  w (:message e))))}
-
-       maelstrom.net.message.Message
-       {"msg" (reify WriteHandler
-               (write [_ w m]
-                 (.writeTag     w "msg" 4)
-                 (.writeInt     w (:id m))
-                 (.writeObject  w (:src m) true)
-                 (.writeObject  w (:dest m) true)
-                 (write-body!   w (:body m))))}}
-
-      (merge fress/clojure-write-handlers)
+  (-> fress/clojure-write-handlers
       fress/associative-lookup
       fress/inheritance-lookup))
 
+(def legacy-nodes
+  "Journals from before node numbers stored src and dest as node id strings.
+  We number those ids as we read them, with this registry, which every such
+  journal shares; see node-ids."
+  (node/registry))
+
+(defn legacy-node
+  "Takes a src or dest as stored by a \"msg\" tag: a node id string in
+  journals from before node numbers, or a node number. Returns the number."
+  [node]
+  (if (string? node)
+    (node/intern! legacy-nodes node)
+    node))
+
+; A block's message bodies, which its events refer to by index. reader reads
+; them in order, as events first refer to them, and bodies holds those we've
+; read so far, so that every event for a message shares one body.
+(deftype Bodies [^FressianReader reader ^ArrayList bodies])
+
+(defn body-at
+  "Returns the body with index i from a block's Bodies. Events in a block
+  refer to bodies in the order they were written, so a body we haven't read
+  yet is always the next one."
+  [^Bodies b ^long i]
+  (let [^ArrayList bodies (.bodies b)]
+    (if (< i (.size bodies))
+      (.get bodies i)
+      (let [body (.readObject ^FressianReader (.reader b))]
+        (.add bodies body)
+        body))))
+
+(defn message-read-handler
+  "A Fressian ReadHandler for messages. In block journals (tag \"bmsg\"),
+  messages refer to their block's bodies by index; in older journals (tag
+  \"msg\"), bodies are inline maps. If bodies? is false, we leave bodies nil,
+  which for bmsg means we never decode them at all. Reading bmsg bodies
+  takes the block's Bodies."
+  [bodies? bodies]
+  (reify ReadHandler
+    (read [_ r tag component-count]
+      (assert (= 4 component-count))
+      (if (= "bmsg" tag)
+        (maelstrom.net.message.Message.
+          (.readInt r)
+          (.readInt r)
+          (.readInt r)
+          (let [i (.readInt r)]
+            (when bodies?
+              (body-at bodies i))))
+        (let [id   (.readInt r)
+              src  (legacy-node (.readObject r))
+              dest (legacy-node (.readObject r))
+              body (.readObject r)]
+          (maelstrom.net.message.Message. id src dest (when bodies? body)))))))
+
+(defn make-read-handlers
+  "Builds Fressian read handlers for the journal. If bodies? is false, these
+  skip decoding message bodies. Block journals also need the block's Bodies,
+  when bodies? is true."
+  ([bodies?]
+   (make-read-handlers bodies? nil))
+  ([bodies? bodies]
+   (let [msg (message-read-handler bodies? bodies)]
+     (-> {"ev" (reify ReadHandler
+                 (read [_ r tag component-count]
+                   (assert (= 4 component-count))
+                   (Event. (.readInt r)
+                           (.readInt r)
+                           (.readObject r)
+                           (.readObject r))))
+          "msg"  msg
+          "bmsg" msg}
+
+         (merge fress/clojure-read-handlers)
+         fress/associative-lookup))))
+
 (def read-handlers
   "How should Fressian read different tags?"
-  (-> {"ev" (reify ReadHandler
-              (read [_ r tag component-count]
-                (assert (= 4 component-count))
-                (Event. (.readInt r)
-                        (.readInt r)
-                        (.readObject r)
-                        (.readObject r))))
-
-       "msg" (reify ReadHandler
-               (read [_ r tag component-count]
-                 (assert (= 4 component-count))
-                 (maelstrom.net.message.Message.
-                   (.readInt r)
-                   (.readObject r)
-                   (.readObject r)
-                   (.readObject r))))}
-
-      (merge fress/clojure-read-handlers)
-      fress/associative-lookup))
+  (make-read-handlers true))
+
+(def header-read-handlers
+  "Like read-handlers, but leaves message bodies nil."
+  (make-read-handlers false))
 
 (def journal-dir-name
   "net-journal")
@@ -122,16 +208,26 @@
   (store/path test journal-dir-name))
 
 (defn file!
-  "What file do we use for storing this stripe of a journal?"
+  "What file did older versions of Maelstrom use for storing this stripe of a
+  journal? We still read these, but no longer write them."
   [test stripe]
   (store/path! test journal-dir-name (str stripe ".fressian")))
 
-(defn ^FressianWriter disk-writer
-  "Constructs a new Fressian Writer for a test's journal."
-  [test stripe]
-  (-> (file! test stripe)
-      io/output-stream
-      (fress/create-writer :handlers write-handlers)))
+(defn nodes-file
+  "Where do we store the mapping of node numbers to node ids?"
+  [test]
+  (store/path test journal-dir-name "nodes.edn"))
+
+(defn node-ids
+  "Journaled messages refer to nodes by number. Returns a map of node numbers
+  to node ids for a test's journal. Journals from before node numbers have no
+  nodes file; for those, this maps the numbers we've assigned while reading
+  them, so read the journal first."
+  [test]
+  (let [f (nodes-file test)]
+    (if (.exists ^File f)
+      (edn/read-string (slurp f))
+      (node/id-map legacy-nodes))))
 
 (defn ^FressianReader disk-reader
   "Constructs a new Fressian Reader for a test's journal."
@@ -141,14 +237,17 @@
       (fress/create-reader :handlers read-handlers)))
 
 (defn disk-readers
-  "Constructs a vector of readers, one per stripe in this test's journal."
-  [test]
-  (->> (journal-dir test)
-       file-seq
-       (filter #(re-find #"\.fressian$" (.getName ^File %)))
-       (mapv (fn [file]
-               (-> (io/input-stream file)
-                   (fress/create-reader :handlers read-handlers))))))
+  "Constructs a vector of readers, one per stripe in this test's journal.
+  Optionally takes read handlers to use."
+  ([test]
+   (disk-readers test read-handlers))
+  ([test handlers]
+   (->> (journal-dir test)
+        file-seq
+        (filter #(re-find #"\.fressian$" (.getName ^File %)))
+        (mapv (fn [file]
+                (-> (io/input-stream file)
+                    (fress/create-reader :handlers handlers)))))))
 
 (defn reader-seq
   "Constructs a lazy sequence of journal operations from a Fressian reader."
@@ -158,74 +257,569 @@
                  (catch EOFException e
                    nil))))
 
-(defn worker
-  "Spawns a thread to write network ops to disk."
-  [^BlockingQueue queue writer]
+(defn closing-reader-seq
+  "Like reader-seq, but closes the reader once it's exhausted."
+  [^FressianReader reader]
+  (lazy-seq (try (cons (fress/read-object reader)
+                       (closing-reader-seq reader))
+                 (catch EOFException e
+                   (.close reader)
+                   nil))))
+
+(defn meta-file
+  "Where do we store facts about the journal itself, like how many events it
+  dropped?"
+  [test]
+  (store/path test journal-dir-name "meta.edn"))
+
+(defn journal-meta
+  "Returns the map of facts about a test's journal, or nil if there isn't
+  one. Has keys:
+
+    :dropped    How many events the writer couldn't keep up with
+    :retention  Which events the journal kept; see retention
+    :stats      Exact statistics over every event logged, kept or not; see
+                counter-stats"
+  [test]
+  (let [f (meta-file test)]
+    (when (.exists ^File f)
+      (edn/read-string (slurp f)))))
+
+(defn index-file
+  "Where do we store the index of a test's block journal? See journal-index."
+  [test]
+  (store/path test journal-dir-name "index.edn"))
+
+(defn columns-dir
+  "Where do we store a columnar journal?"
+  [test]
+  (store/path test journal-dir-name "columns"))
+
+(defprotocol Sink
+  (write! [sink id event] "Writes an event, with the given id, to disk.")
+  (close-sink! [sink] "Flushes and closes the sink."))
+
+(def block-size
+  "How many events do we put in each compressed block of a stripe?"
+  4096)
+
+(defn block-writer
+  "A fresh Fressian writer for a block. Each block gets its own, so that
+  Fressian's caches never span blocks, and we can decode any block alone."
+  ^FressianWriter [^ByteArrayOutputStream buf]
+  (fress/create-writer buf :handlers write-handlers))
+
+(defn block-bytes
+  "Lays out a block's bytes: the length of its events, as an int, then its
+  events, then its bodies. See BlockSink."
+  ^bytes [^ByteArrayOutputStream buf ^ByteArrayOutputStream body-buf]
+  (let [out (ByteArrayOutputStream. (+ 4 (.size buf) (.size body-buf)))]
+    (.writeInt (DataOutputStream. out) (.size buf))
+    (.writeTo buf out)
+    (.writeTo body-buf out)
+    (.toByteArray out)))
+
+(defn flush-block!
+  "Writes a block sink's buffered events and bodies, if any, as a block, and
+  starts a new one. See BlockSink."
+  [w ^ByteArrayOutputStream buf ^ByteArrayOutputStream body-buf ^objects fw
+   ^longs stats ^longs cached-ids ^BitSet nodes ^ArrayList node-sets]
+  (when (pos? (aget stats 0))
+    (let [raw (block-bytes buf body-buf)]
+      (blocks/write-block! w raw (alength raw)
+                           (aget stats 0) (aget stats 1) (aget stats 2)
+                           (aget stats 3) (aget stats 4)))
+    (.add node-sets (into (sorted-set) (.toArray (.stream nodes))))
+    (.clear nodes)
+    (.reset buf)
+    (.reset body-buf)
+    (aset fw 0 (block-writer buf))
+    (aset fw 1 (block-writer body-buf))
+    (Arrays/fill cached-ids Long/MIN_VALUE)
+    (aset stats 0 0)
+    (aset stats 5 0)))
+
+(defn write-index!
+  "Writes the index for a test's block journal, once all its blocks are on
+  disk. Takes a list of the sets of node numbers involved in each block of
+  stripe 0, in order."
+  [test node-sets]
+  (let [{:keys [codec blocks]} (blocks/read-index (journal-dir test) 0)]
+    (spit (index-file test)
+          (pr-str {:blocks (mapv (fn [block nodes]
+                                   (assoc (into {} block)
+                                          :codec codec
+                                          :nodes nodes))
+                                 blocks
+                                 node-sets)}))))
+
+; Writes Fressian events into a buffer, and hands them to a blocks/writer
+; every block-size events. Message bodies go in a second buffer, as their own
+; Fressian stream, which readers can skip; a block is the length of its
+; events, then its events, then its bodies (see block-bytes). Events refer to
+; bodies by index, and we write each message's body once per block, however
+; many of its events the block holds, so bodies share one writer's caches.
+;
+; fw is a two-element array of the current block's FressianWriters, for
+; events and bodies. stats is an array of the current block's event count, min
+; and max id, min and max time, and body count. cached-ids and cached-indices
+; are a direct-mapped cache, with block-size slots, of the indices of recent
+; messages' bodies in the current block. nodes is a BitSet of the node numbers
+; in the current block, and node-sets collects them for every finished block,
+; so we can write the journal index on close.
+(deftype BlockSink [test
+                    w
+                    ^ByteArrayOutputStream buf
+                    ^ByteArrayOutputStream body-buf
+                    ^objects fw
+                    ^longs stats
+                    ^longs cached-ids
+                    ^longs cached-indices
+                    ^BitSet nodes
+                    ^ArrayList node-sets]
+  Sink
+  (write! [_ id event]
+    (let [id         (long id)
+          time       (.time ^Event event)
+          ^Message m (.message ^Event event)
+          msg-id     (.id m)
+          slot       (bit-and msg-id (dec (long block-size)))
+          body       (if (= msg-id (aget cached-ids slot))
+                       (aget cached-indices slot)
+                       (let [body (aget stats 5)]
+                         (write-body! (aget fw 1) (.body m))
+                         (aset cached-ids slot msg-id)
+                         (aset cached-indices slot body)
+                         (aset stats 5 (inc body))
+                         body))]
+      (write-event! (aget fw 0) id event body)
+      (.set nodes (int (.src m)))
+      (.set nodes (int (.dest m)))
+      (when (zero? (aget stats 0))
+        (aset stats 1 id)
+        (aset stats 3 time)
+        (aset stats 4 time))
+      (aset stats 0 (inc (aget stats 0)))
+      (aset stats 2 id)
+      (aset stats 3 (min time (aget stats 3)))
+      (aset stats 4 (max time (aget stats 4)))
+      (when (= block-size (aget stats 0))
+        (flush-block! w buf body-buf fw stats cached-ids nodes node-sets))))
+
+  (close-sink! [_]
+    (flush-block! w buf body-buf fw stats cached-ids nodes node-sets)
+    (blocks/close-writer! w)
+    (write-index! test node-sets)))
+
+(defn encode-body!
+  "Encodes a message body into a (reset) ByteArrayOutputStream, as a
+  standalone Fressian object. Columnar journals read bodies by offset, in any
+  order, so each has to stand alone, unlike a block's bodies."
+  [^ByteArrayOutputStream buf body]
+  (.reset buf)
+  (let [w (fress/create-writer buf :handlers write-handlers)]
+    (write-body! w body)
+    (.close ^FressianWriter w))
+  buf)
+
+(defn decode-body
+  "Decodes a body encoded by encode-body!."
+  [^bytes bytes]
+  (-> (ByteArrayInputStream. bytes)
+      (fress/create-reader :handlers read-handlers)
+      fress/read-object))
+
+; Writes the columnar format; see maelstrom.net.columns. buf is a scratch
+; buffer for encoding bodies.
+(deftype ColumnarSink [w ^ByteArrayOutputStream buf]
+  Sink
+  (write! [_ id event]
+    (let [^Event event                            event
+          ^maelstrom.net.message.Message message  (.message event)]
+      (columns/append! w
+                       (.time event)
+                       (.type event)
+                       (.src message)
+                       (.dest message)
+                       (.id message)
+                       ; Every event for a message shares its body, so we
+                       ; only encode and write it once.
+                       (let [offset (columns/body-offset w (.id message))]
+                         (if (neg? offset)
+                           (columns/append-body! w (.id message)
+                                                 (encode-body!
+                                                   buf (.body message)))
+                           offset)))))
+
+  (close-sink! [_]
+    (columns/close-writer! w)))
+
+(defn block-sink
+  "Opens a sink which writes stripe 0 of a test's journal as blocks,
+  compressed with the given codec."
+  [test codec]
+  (let [buf      (ByteArrayOutputStream. 65536)
+        body-buf (ByteArrayOutputStream. 65536)]
+    (BlockSink. test
+                (blocks/writer (journal-dir test) 0 codec)
+                buf
+                body-buf
+                (object-array [(block-writer buf) (block-writer body-buf)])
+                (long-array 6)
+                (long-array block-size Long/MIN_VALUE)
+                (long-array block-size)
+                (BitSet.)
+                (ArrayList.))))
+
+(defn sink
+  "Opens a sink for a test's journal, in the given format, compressing it with
+  codec, if the format supports compression."
+  [test format codec]
+  (case format
+    :fressian (block-sink test codec)
+    :columnar (ColumnarSink. (columns/writer (columns-dir test))
+                             (ByteArrayOutputStream. 256))))
+
+(def batch-size
+  "How many events does the writer take from the ring at a time?"
+  1024)
+
+;; Subscriptions
+
+; A live consumer of journal events. f is called with each event, on the
+; subscription's own thread, which takes events from ring. The journal's
+; writer never waits for a subscriber: if its ring is full, we count the
+; event in dropped instead. running? tells the thread whether to keep waiting
+; for more events, and thread is a future of it.
+(defrecord Subscription [f ring ^AtomicLong dropped running? thread])
+
+(defn publish!
+  "Hands an event, which the writer has assigned an id, to every subscriber."
+  [subscribers ^long id ^Event event]
+  (when (seq subscribers)
+    (let [event (Event. id (.time event) (.type event) (.message event))]
+      (doseq [^Subscription sub subscribers]
+        (when-not (ring/offer! (.ring sub) event)
+          (.incrementAndGet ^AtomicLong (.dropped sub)))))))
+
+(defn subscriber-thread
+  "Spawns a thread which calls f with each event in a ring, until running?
+  goes false and the ring is empty. An exception from f is logged, and
+  doesn't stop the subscription."
+  [f ring running?]
+  (future
+    (util/with-thread-name "maelstrom net journal subscriber"
+      (loop []
+        (if-let [event (ring/poll! ring)]
+          (do (try (f event)
+                   (catch Throwable t
+                     (warn t "Net journal subscriber threw")))
+              (recur))
+          (when @running?
+            (LockSupport/parkNanos 100000)
+            (recur))))
+      ; Anything published before running? went false is visible now.
+      (loop []
+        (when-let [event (ring/poll! ring)]
+          (try (f event)
+               (catch Throwable t
+                 (warn t "Net journal subscriber threw")))
+          (recur))))))
+
+(defn subscribe!
+  "Streams a journal's events, as the writer takes them, to (f event), on a
+  thread of its own. Subscribers see every event logged, whether or not the
+  journal's retention keeps it on disk (see retention), so live monitoring
+  works even with :counters-only. Events the journal keeps arrive in id
+  order, with their ids assigned; ids only number kept events, so the rest
+  arrive with id -1. Options:
+
+    :buffer   How many events may wait for f before we start dropping them.
+              Default 65536.
+
+  A slow subscriber never holds up the journal or the network: once its
+  buffer fills, further events are dropped until it catches up. Returns a
+  Subscription; see unsubscribe! and subscriber-dropped."
+  ([journal f]
+   (subscribe! journal {} f))
+  ([journal opts f]
+   (let [ring     (ring/ring (:buffer opts 65536))
+         running? (atom true)
+         sub      (Subscription. f
+                                 ring
+                                 (AtomicLong. 0)
+                                 running?
+                                 (subscriber-thread f ring running?))]
+     (swap! (:subscribers journal) conj sub)
+     sub)))
+
+(defn unsubscribe!
+  "Stops sending events to a subscription. Waits for it to finish with the
+  events it already has."
+  [journal ^Subscription sub]
+  (swap! (:subscribers journal) (partial filterv (partial not= sub)))
+  (reset! (.running? sub) false)
+  @(.thread sub)
+  journal)
+
+(defn subscriber-dropped
+  "How many events has a subscription dropped because its buffer was full?"
+  ^long [^Subscription sub]
+  (.get ^AtomicLong (.dropped sub)))
+
+;; Writing
+
+(defn drain!
+  "Takes up to batch-size events from a ring, and publishes them all to
+  subscribers. Writes those which retain? keeps to a sink, numbering them
+  from the id in next-id, a one-element long array, which we advance. Returns
+  the number of events taken."
+  [ring sink subscribers retain? ^longs next-id]
+  (loop [n 0]
+    (if (= n batch-size)
+      n
+      (if-let [event (ring/poll! ring)]
+        (do (if (retain? event)
+              (let [id (aget next-id 0)]
+                (write! sink id event)
+                (publish! subscribers id event)
+                (aset next-id 0 (inc id)))
+              (publish! subscribers -1 event))
+            (recur (inc n)))
+        n))))
+
+(defn writer
+  "Spawns a thread which drains a ring of events to a sink until running?
+  goes false and the ring is empty, then closes the sink.
+
+  The writer assigns event ids, in the order it takes events from the ring.
+  Since it's the only thread doing so, ids are dense and contiguous--0, 1, 2,
+  ...--without any coordination between the threads logging events, and
+  events we drop never get an id at all. Returns the number of events
+  written.
+
+  subscribers is an atom of a vector of Subscriptions, which the writer
+  streams events to as it takes them. The ring may hold events the journal
+  doesn't keep, for subscribers' sake; retain? decides which to write."
+  [ring sink subscribers retain? running?]
   (future
     (util/with-thread-name "maelstrom net journal"
       (try
-        (loop []
-          (let [event (.take queue)]
-            (if (= event :done)
-              (do (.close ^FressianWriter writer)
-                  :done)
-              (do (fress/write-object writer event)
-                  (recur)))))
-        (catch InterruptedException e
-          ; Normal shutdown
-          :interrupted)
+        (let [next-id (long-array 1)]
+          (loop []
+            (let [n (long (drain! ring sink @subscribers retain? next-id))]
+              (cond (pos? n)
+                    (recur)
+
+                    @running?
+                    (do ; Nothing to do yet
+                        (LockSupport/parkNanos 100000)
+                        (recur))
+
+                    ; Shutting down. Everything appended before running?
+                    ; went false is visible to us now.
+                    true
+                    (do (while (pos? (long (drain! ring sink @subscribers
+                                                   retain? next-id))))
+                        (close-sink! sink)
+                        (aget next-id 0))))))
         (catch Throwable t
           ; Log so we know what's going on, because this is going to stall the
           ; rest of the test
-          (warn t "Error in net journal worker")
+          (warn t "Error in net journal writer")
           (throw t))))))
 
+;; Counters and retention
+
+; Exact totals of every event logged, whether or not the journal keeps it.
+; adders is an array of LongAdders, indexed by (group * 4 + type code), where
+; group is 0 for messages involving clients, and 1 for the rest. drops is a
+; ConcurrentHashMap of [src dest] to a LongAdder of partition drops.
+(defrecord Counters [^objects adders ^ConcurrentHashMap drops])
+
+(defn counters
+  "Fresh, zeroed counters."
+  []
+  (Counters. (object-array (repeatedly (* 2 (count columns/type-codes))
+                                       #(LongAdder.)))
+             (ConcurrentHashMap.)))
+
+(def new-adder
+  "Makes a LongAdder for ConcurrentHashMap.computeIfAbsent."
+  (reify Function
+    (apply [_ _] (LongAdder.))))
+
+(defn count!
+  "Counts an event. Safe to call from any thread."
+  [^Counters counters ^Event event]
+  (let [^Message m (.message event)
+        type       (.type event)
+        group      (if (msg/involves-client? m) 0 1)]
+    (.increment ^LongAdder (aget ^objects (.adders counters)
+                                 (+ (* group (count columns/type-codes))
+                                    (long (columns/type-codes type)))))
+    (when (identical? :drop type)
+      (.increment ^LongAdder (.computeIfAbsent
+                               ^ConcurrentHashMap (.drops counters)
+                               [(.src m) (.dest m)]
+                               new-adder)))))
+
+(defn counter-stats
+  "Turns counters into the same map as net.checker/stats. Every message has
+  exactly one :send event, so the number of distinct messages is the number
+  of sends."
+  [^Counters counters]
+  (let [^objects adders (.adders counters)
+        group (fn [group]
+                (let [c (fn [type]
+                          (.sum ^LongAdder
+                                (aget adders
+                                      (+ (* group (count columns/type-codes))
+                                         (long (columns/type-codes type))))))]
+                  {:send-count     (c :send)
+                   :recv-count     (c :recv)
+                   :drop-count     (c :drop)
+                   :overflow-count (c :overflow)
+                   :msg-count      (c :send)}))
+        clients (group 0)
+        servers (group 1)]
+    {:all             (merge-with + clients servers)
+     :clients         clients
+     :servers         servers
+     :partition-drops (into {}
+                            (map (fn [[k ^LongAdder n]] [k (.sum n)]))
+                            (.drops counters))}))
+
+(defn retention
+  "Returns a predicate which decides whether a journal keeps an event, for a
+  retention mode:
+
+    :full           Every event
+    :clients-only   Only events for messages to or from clients
+    :sampled        Every client event, and server events for one message in
+                    n, chosen by message id, so we keep every event for the
+                    messages we sample.
+    :counters-only  No events at all; only counters"
+  [mode n]
+  (case mode
+    :full           (constantly true)
+    :clients-only   (fn [^Event e] (msg/involves-client? (.message e)))
+    :sampled        (let [n (long n)]
+                      (fn [^Event e]
+                        (let [^Message m (.message e)]
+                          (or (msg/involves-client? m)
+                              (zero? (mod (.id m) n))))))
+    :counters-only  (constantly false)))
+
+;; Journals
+
 (defn journal
-  "Constructs a new journal: a map of:
+  "Constructs a new journal, and starts its writer thread. Reads these
+  options from the test:
+
+    :journal-buffer        How many events the ring buffer holds. Default
+                           65536.
+    :journal-backpressure  What to do when the buffer is full: :block makes
+                           threads wait for the writer to catch up, and
+                           :drop discards the event. Default :block.
+    :journal-format        :fressian, or :columnar for the memory-mapped
+                           format in maelstrom.net.columns. Default
+                           :fressian.
+    :journal-compression   How to compress Fressian journal blocks: :none,
+                           or :deflate. Default :deflate.
+    :journal-retention     Which events to keep; see retention. Default
+                           :full. Whatever we keep, we count every event,
+                           and save the totals on close; see journal-meta.
+    :journal-sample        Keep one in this many server messages, when
+                           retention is :sampled. Default 100.
+
+  A journal is a map of:
 
     :test         The test
-    :next-stripe  An atom used to assign stripe numbers
-    :local-writer The local thread's writer
-    :next-index   An atom long used to establish the order of journal events
-    :writers      An atom vector of writers, use to close down the journal"
-  [test]
-  {:test          test
-   :next-stripe   (atom -1)
-   :local-writer  (ThreadLocal.)
-   :next-id       (atom -1)
-   :writers       (atom [])})
+    :nodes        The network's node registry, which we persist on close
+    :ring         A ring buffer of events awaiting the writer
+    :block?       Whether to wait for room in the ring, or drop events
+    :dropped      An AtomicLong counting events we dropped
+    :running?     An atom which tells the writer whether to keep going
+    :subscribers  An atom of a vector of Subscriptions; see subscribe!
+    :counters     Counters of every event logged
+    :retention    The retention mode
+    :retain?      A predicate of the events we keep
+    :writer       A future of the writer thread"
+  [test nodes]
+  (let [backpressure (:journal-backpressure test :block)
+        ring         (ring/ring (:journal-buffer test 65536))
+        subscribers  (atom [])
+        running?     (atom true)
+        mode         (:journal-retention test :full)
+        retain?      (retention mode (:journal-sample test 100))]
+    (assert (#{:block :drop} backpressure)
+            (str "Unknown journal backpressure mode " (pr-str backpressure)))
+    {:test        test
+     :nodes       nodes
+     :ring        ring
+     :block?      (= :block backpressure)
+     :dropped     (AtomicLong. 0)
+     :running?    running?
+     :subscribers subscribers
+     :counters    (counters)
+     :retention   mode
+     :retain?     retain?
+     :writer      (writer ring
+                          (sink test
+                                (:journal-format test :fressian)
+                                (:journal-compression test :deflate))
+                          subscribers
+                          retain?
+                          running?)}))
 
 (defn close!
-  "Closes a journal."
-  [journal]
-  ; Close each writer
-  (doseq [^FressianWriter w @(:writers journal)]
-    (.close w)))
-
-(defn ^FressianWriter local-writer
-  "Returns the writer for the current thread, possibly opening a new one."
+  "Closes a journal, waiting for the writer and any subscribers to finish."
   [journal]
-  (let [^ThreadLocal local-writer (:local-writer journal)]
-    ; Return local writer if we already have it
-    (or (.get local-writer)
-        ; Ah, we need to create a new writer. Pick a new stripe ID...
-        (let [stripe (swap! (:next-stripe journal) inc)
-              ; Create a writer
-              writer (disk-writer (:test journal) stripe)]
-          ; And record it
-          (swap! (:writers journal) conj writer)
-          (.set local-writer writer)
-          writer))))
+  (reset! (:running? journal) false)
+  @(:writer journal)
+  (doseq [sub @(:subscribers journal)]
+    (unsubscribe! journal sub)
+    (let [dropped (subscriber-dropped sub)]
+      (when (pos? dropped)
+        (warn "Net journal subscriber" (pr-str (:f sub)) "dropped" dropped
+              "events because it couldn't keep up"))))
+  (let [test    (:test journal)
+        dropped (.get ^AtomicLong (:dropped journal))]
+    (when (pos? dropped)
+      (warn "Net journal dropped" dropped "events because its writer"
+            "couldn't keep up; consider a larger --journal-buffer."))
+    (store/path! test journal-dir-name "nodes.edn")
+    ; Save node numbers, so we can make sense of messages later
+    (spit (nodes-file test) (pr-str (node/id-map (:nodes journal))))
+    (spit (meta-file test)
+          (pr-str {:dropped   dropped
+                   :retention (:retention journal)
+                   :stats     (counter-stats (:counters journal))}))))
 
 (defn log-event!
-  "Logs an arbitrary event to a journal."
+  "Logs an arbitrary event to a journal: counts it, and, if the journal's
+  retention keeps it or anyone has subscribed, hands it to the writer."
   [journal event]
-  (fress/write-object (local-writer journal) event))
+  (count! (:counters journal) event)
+  (let [ring (:ring journal)]
+    (when (and (or ((:retain? journal) event)
+                   (seq @(:subscribers journal)))
+               (not (ring/offer! ring event)))
+      (if (:block? journal)
+        (loop []
+          (when (realized? (:writer journal))
+            (throw (IllegalStateException.
+                     "Net journal writer has stopped; can't log events")))
+          (LockSupport/parkNanos 10000)
+          (when-not (ring/offer! ring event)
+            (recur)))
+        (.incrementAndGet ^AtomicLong (:dropped journal))))))
 
 (defn log-send!
   "Logs a send operation"
   [journal message]
-  (log-event! journal (Event. (swap! (:next-id journal) inc)
+  (log-event! journal (Event. -1 ; The writer assigns ids
                               (linear-time-nanos)
                               :send
                               message)))
@@ -233,26 +827,56 @@
 (defn log-recv!
   "Logs a receive operation"
   [journal message]
-  (log-event! journal (Event. (swap! (:next-id journal) inc)
+  (log-event! journal (Event. -1
                               (linear-time-nanos)
                               :recv
                               message)))
 
+(defn log-drop!
+  "Logs a message being dropped by a network partition."
+  [journal message]
+  (log-event! journal (Event. -1
+                              (linear-time-nanos)
+                              :drop
+                              message)))
+
+(defn log-overflow!
+  "Logs a message being dropped because its recipient's queue was full."
+  [journal message]
+  (log-event! journal (Event. -1
+                              (linear-time-nanos)
+                              :overflow
+                              message)))
+
 (defn involves-client?
   "Takes an event and returns true iff it was sent to or received from a
   client."
   [{:keys [message]}]
-  (u/involves-client? message))
+  (msg/involves-client? message))
+
+(defn init?
+  "Is this event an initialization message?"
+  [^Event event]
+  (let [t (:type (.body ^maelstrom.net.message.Message (.message event)))]
+    (or (= t "init")
+        (= t "init_ok"))))
+
+(defn dropped?
+  "Was this event's message dropped by a partition or a full queue?"
+  [^Event e]
+  (let [t (.type e)]
+    (or (identical? :drop t)
+        (identical? :overflow t))))
 
 (defn without-init
   "A fold which strips out initialization messages."
   [& [f]]
-  (t/remove (fn [^Event event]
-              (let [t (:type (.body ^maelstrom.net.message.Message
-                                    (.message event)))]
-                (or (= t "init")
-                    (= t "init_ok"))))
-            f))
+  (t/remove init? f))
+
+(defn without-drops
+  "A fold which strips out messages dropped by partitions or full queues."
+  [& [f]]
+  (t/remove dropped? f))
 
 ;; Analysis
 
@@ -310,6 +934,14 @@
   "Fold which filters a journal to just receives."
   (t/filter (fn recv? [^Event e] (identical? :recv (.type e)))))
 
+(def drops
+  "Fold which filters a journal to just messages dropped by partitions."
+  (t/filter (fn drop? [^Event e] (identical? :drop (.type e)))))
+
+(def overflows
+  "Fold which filters a journal to just messages dropped by full queues."
+  (t/filter (fn overflow? [^Event e] (identical? :overflow (.type e)))))
+
 (def clients
   "Fold which filters a journal to just messages to/from clients"
   (t/filter involves-client?))
@@ -318,30 +950,346 @@
   "Fold which filters a journal to just messages between servers."
   (t/remove involves-client?))
 
-(t/deftransform up-to-event
-  "A fold which selects all contiguous events, in event order, up to but not
-  including id n. Relies on the fact that event IDs are allocated contiguously
-  0, 1, 2... and unique across all chunks."
-  [n]
-  (assert (nil? downstream))
-  {:reducer-identity (partial transient [])
-   :reducer          (fn reducer [taken ^Event e]
-                       (if (< (.id e) n)
-                         ; Still in bounds
-                         (conj! taken e)
-                         ; Done
-                         (reduced taken)))
-   :post-reducer      persistent!
-   :combiner-identity (constantly [])
-   :combiner          into
-   :post-combiner     (partial sort-by :id)})
+(defn columns
+  "Maps a test's columnar journal, or returns nil if it was journaled in
+  some other format."
+  [test]
+  (columns/open (columns-dir test)))
+
+(defn column-event
+  "Materializes row i of a columnar journal as an Event, decoding its body."
+  [c ^long i]
+  (Event. i
+          (columns/time-at c i)
+          (columns/code-types (columns/type-at c i))
+          (maelstrom.net.message.Message.
+            (columns/msg-id-at c i)
+            (columns/src-at c i)
+            (columns/dest-at c i)
+            (decode-body (columns/body-bytes c i)))))
+
+(defn column-header
+  "Like column-event, but leaves the message's body nil, so we don't decode
+  it."
+  [c ^long i]
+  (Event. i
+          (columns/time-at c i)
+          (columns/code-types (columns/type-at c i))
+          (maelstrom.net.message.Message.
+            (columns/msg-id-at c i)
+            (columns/src-at c i)
+            (columns/dest-at c i)
+            nil)))
+
+(defn column-chunk
+  "A reducible collection of the Events in rows [start, end) of a columnar
+  journal. Takes a function (event c i) to materialize each row, like
+  column-event."
+  [c event ^long start ^long end]
+  (reify clojure.lang.IReduceInit
+    (reduce [_ f init]
+      (loop [i   start
+             acc init]
+        (cond (reduced? acc) @acc
+              (= i end)      acc
+              true           (recur (inc i) (f acc (event c i))))))))
+
+(def chunks-per-core
+  "When we split a journal up for Tesser, how many chunks do we aim for per
+  core? More chunks even out the work, but each has some overhead."
+  4)
+
+(defn chunk-size
+  "How many events should go in each Tesser chunk, for a journal of n events?"
+  ^long [^long n]
+  (-> n
+      (/ (* chunks-per-core (.availableProcessors (Runtime/getRuntime))))
+      Math/ceil
+      long
+      (max 1)))
+
+(defn column-chunks
+  "Splits a columnar journal into chunks for Tesser; see chunk-size. Takes
+  tesser-journal's options; rows are event ids, so we can skip everything
+  at or past :before-id exactly."
+  [c {:keys [before-id bodies?] :or {bodies? true}}]
+  (let [n     (cond-> (long (:n c))
+                before-id (min (long before-id)))
+        event (if bodies? column-event column-header)
+        size  (chunk-size n)]
+    (mapv (fn [start]
+            (column-chunk c event start (min n (+ start size))))
+          (range 0 n size))))
+
+(defn journal-index
+  "Returns a vector of every Block in a test's block journal, in stripe and id
+  order, or nil if it was journaled in some other format. Each block also has
+  its stripe's :codec, and, as :nodes, a set of the node numbers its events'
+  messages came from or went to.
+
+  The index is written once, when the journal closes. If the journal wasn't
+  closed cleanly, we rebuild what we can from the stripes' own indices, and
+  blocks have no :nodes."
+  [test]
+  (let [f (index-file test)]
+    (if (.exists ^File f)
+      (mapv blocks/map->Block (:blocks (edn/read-string (slurp f))))
+      (let [dir (journal-dir test)]
+        (when-let [stripes (seq (blocks/stripes dir))]
+          (vec (for [stripe stripes
+                     :let [{:keys [codec blocks]} (blocks/read-index dir
+                                                                     stripe)]
+                     block blocks]
+                 (assoc block :codec codec))))))))
+
+(defn block-chunk
+  "A reducible collection of the Events in a single indexed block of a stripe
+  in directory dir. Reads and decompresses the block only when reduced. If
+  bodies? is false, messages' bodies are nil, and we skip the block's bodies
+  entirely. See BlockSink for a block's layout."
+  ([dir block]
+   (block-chunk dir true block))
+  ([dir bodies? ^Block block]
+   (reify clojure.lang.IReduceInit
+     (reduce [_ f init]
+       (let [^bytes raw (with-open [data (RandomAccessFile.
+                                           (blocks/data-file dir
+                                                             (.stripe block))
+                                           "r")]
+                          (blocks/read-block data (:codec block) block))
+             length     (.getInt (ByteBuffer/wrap raw))
+             handlers   (if bodies?
+                          (make-read-handlers
+                            true
+                            (Bodies. (fress/create-reader
+                                       (ByteArrayInputStream.
+                                         raw
+                                         (+ 4 length)
+                                         (- (alength raw) 4 length))
+                                       :handlers read-handlers)
+                                     (ArrayList.)))
+                          header-read-handlers)
+             r          (fress/create-reader
+                          (ByteArrayInputStream. raw 4 length)
+                          :handlers handlers)
+             n          (.event-count block)]
+         (loop [i   0
+                acc init]
+           (cond (reduced? acc) @acc
+                 (= i n)        acc
+                 true           (recur (inc i)
+                                       (f acc (fress/read-object r))))))))))
+
+(defn run-chunk
+  "A reducible collection of the Events in a run of consecutive indexed
+  blocks from one stripe, decoding one block at a time."
+  [dir bodies? blocks]
+  (reify clojure.lang.IReduceInit
+    (reduce [_ f init]
+      ; Each block's reduce unwraps a reduced value, so we wrap it twice, to
+      ; tell that we should stop here too.
+      (let [f (fn [acc e]
+                (let [acc (f acc e)]
+                  (if (reduced? acc) (reduced acc) acc)))]
+        (loop [blocks (seq blocks)
+               acc    init]
+          (cond (reduced? acc) @acc
+                (nil? blocks)  acc
+                true           (recur (next blocks)
+                                      (reduce f acc (block-chunk
+                                                      dir bodies?
+                                                      (first blocks))))))))))
+
+(defn block-runs
+  "Splits a stripe's blocks into runs of consecutive blocks, each with about
+  size events."
+  [^long size blocks]
+  (loop [runs   []
+         run    []
+         events 0
+         blocks (seq blocks)]
+    (if-let [^Block block (first blocks)]
+      (let [run    (conj run block)
+            events (+ events (.event-count block))]
+        (if (<= size events)
+          (recur (conj runs run) [] 0 (next blocks))
+          (recur runs run events (next blocks))))
+      (cond-> runs (seq run) (conj run)))))
+
+(defn block-chunks
+  "Turns a test's block journal index into chunks for Tesser. A chunk is a
+  run of consecutive blocks from one stripe, so busy stripes are split up
+  and small ones aren't, and chunks come out about the same size no matter
+  how events are spread across stripes; see chunk-size. Takes
+  tesser-journal's options, and skips blocks which can't contain any events
+  we want."
+  [test index {:keys [before-id bodies?] :or {bodies? true}}]
+  (let [dir      (journal-dir test)
+        index    (filter (fn [^Block block]
+                           (or (nil? before-id)
+                               (< (.min-id block) (long before-id))))
+                         index)
+        size     (chunk-size (reduce + 0 (map :event-count index)))]
+    (->> index
+         (partition-by :stripe)
+         (mapcat (partial block-runs size))
+         (mapv (partial run-chunk dir bodies?)))))
 
 (defn tesser-journal
-  "Runs a Tesser fold over a test's journal: each stripe used as a single
-  chunk."
-  [test fold]
-  (let [readers (disk-readers test)]
-    (try
-      (t/tesser (mapv reader-seq readers) fold)
-      (finally (doseq [^Closeable r readers]
-                 (.close r))))))
+  "Runs a Tesser fold over a test's journal. Block journals are split into
+  balanced runs of blocks, columnar journals into row ranges, and older,
+  unblocked Fressian journals into one chunk per stripe. Options:
+
+    :before-id  We only need events with ids below this. Parts of the journal
+                which are known to hold only later events are skipped, but the
+                fold may still see some of them, and should filter them out.
+    :bodies?    If false, messages' bodies are nil. Folds which only need
+                ids, times, types, and message routing run much faster this
+                way, since we don't decode bodies at all. Default true."
+  ([test fold]
+   (tesser-journal test {} fold))
+  ([test opts fold]
+   (if-let [c (columns test)]
+     (t/tesser (column-chunks c opts) fold)
+     (if-let [index (journal-index test)]
+       (t/tesser (block-chunks test index opts) fold)
+       (let [readers (disk-readers test (if (:bodies? opts true)
+                                          read-handlers
+                                          header-read-handlers))]
+         (try
+           (t/tesser (mapv reader-seq readers) fold)
+           (finally (doseq [^Closeable r readers]
+                      (.close r)))))))))
+
+;; Queries
+
+(defn block-seq
+  "A lazy sequence of the events in a series of indexed blocks from a single
+  stripe in directory dir, decoding one block at a time."
+  [dir blocks]
+  (lazy-seq
+    (when-let [[block & more] (seq blocks)]
+      (concat (into [] (block-chunk dir block))
+              (block-seq dir more)))))
+
+(defn event-id
+  "An event's id, as a primitive."
+  ^long [^Event e]
+  (.id e))
+
+(defn call-with-ordered-events
+  "Calls (f events) with a lazy sequence of every event in a test's journal,
+  in id order, and returns what f returns. Each stripe is in id order
+  already, so rather than collecting and sorting the whole journal, we merge
+  the stripes as we go: memory use depends on how many stripes there are, not
+  how long the journal is. Today's journals only have one stripe; older
+  journals have one per thread. Once f returns, we close any files we
+  opened, so f can stop early, but must be done with events.
+
+  block? is a predicate which, like select's, can rule out blocks from the
+  journal index."
+  [test block? f]
+  (if-let [c (columns test)]
+    (f (map (partial column-event c) (range (:n c))))
+    (if-let [index (journal-index test)]
+      ; block-chunk closes each block's file as it goes
+      (let [dir (journal-dir test)]
+        (f (->> index
+                (filter block?)
+                (partition-by :stripe)
+                (map (partial block-seq dir))
+                (merge/merge-by event-id))))
+      ; An older journal, without an index.
+      (let [readers (disk-readers test)]
+        (try (f (->> readers
+                     (map reader-seq)
+                     (merge/merge-by event-id)))
+             (finally
+               (doseq [^Closeable r readers]
+                 (.close r))))))))
+
+(defn ordered-events
+  "A lazy sequence of every event in a test's journal, in id order; see
+  call-with-ordered-events. Don't hold on to the head. Older journals' files
+  only close once the sequence is exhausted, so if you might stop early,
+  use call-with-ordered-events instead.
+
+  Optionally takes a predicate which, like select's block?, can rule out
+  blocks from the journal index."
+  ([test]
+   (ordered-events test (constantly true)))
+  ([test block?]
+   (if (or (.exists ^File (columns-dir test))
+           (journal-index test))
+     (call-with-ordered-events test block? identity)
+     (->> (disk-readers test)
+          (map closing-reader-seq)
+          (merge/merge-by event-id)))))
+
+(defn select
+  "Returns a vector of the events in a test's journal which satisfy event?,
+  in id order. event? may look at an event's id, time, and type, and at its
+  message's id, src, and dest, but not its body: we try columnar rows before
+  decoding their bodies. block? takes a Block from the journal index, and
+  returns false when that block can't hold any events we want, so we can
+  skip reading it."
+  [test block? event?]
+  (if-let [c (columns test)]
+    (persistent!
+      (reduce (fn [events i]
+                (if (event? (column-header c i))
+                  (conj! events (column-event c i))
+                  events))
+              (transient [])
+              (range (:n c))))
+    (call-with-ordered-events test block?
+                              (partial into [] (filter event?)))))
+
+(defn events-before
+  "All events in a test's journal with ids below n, in id order. Stops
+  reading as soon as it passes n."
+  [test n]
+  (let [n (long n)]
+    (call-with-ordered-events
+      test
+      (fn [^Block b] (< (.min-id b) n))
+      (partial into [] (take-while (fn [^Event e] (< (.id e) n)))))))
+
+(defn events-between
+  "All events in a test's journal from linear time t0, inclusive, to t1,
+  exclusive, in id order. Times are in nanoseconds, like events' :time."
+  [test t0 t1]
+  (let [t0 (long t0)
+        t1 (long t1)]
+    (select test
+            (fn [^Block b]
+              (and (<= t0 (.max-time b))
+                   (< (.min-time b) t1)))
+            (fn [^Event e]
+              (and (<= t0 (.time e))
+                   (< (.time e) t1))))))
+
+(defn events-for-node
+  "All events in a test's journal whose messages came from or went to the
+  given node, in id order. Takes a node id, like \"n1\", or a node number."
+  [test node]
+  (if-let [n (cond (number? node)
+                   node
+
+                   (.exists ^File (nodes-file test))
+                   (get (set/map-invert (node-ids test)) node)
+
+                   ; An older journal; we might not have read it yet.
+                   true
+                   (legacy-node node))]
+    (let [n (long n)]
+      (select test
+              (fn [b]
+                (if-let [nodes (:nodes b)]
+                  (contains? nodes n)
+                  true))
+              (fn [^Event e]
+                (let [^Message m (.message e)]
+                  (or (= n (.src m))
+                      (= n (.dest m)))))))
+    []))
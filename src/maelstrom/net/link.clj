@@ -0,0 +1,228 @@
+(ns maelstrom.net.link
+  "Models the characteristics of individual network links: the latency,
+  packet loss, and bandwidth a message sees going from one particular node to
+  another.
+
+  By default every server-to-server link looks the same, shaped by --latency
+  and --latency-dist. A link model lets you describe a richer topology--say,
+  nodes spread across regions, with fast links inside a region and slow ones
+  between them--either as an EDN or JSON file, or by naming a preset.
+
+  A link model spec is a map like:
+
+    {:regions {:east [\"n0\" \"n1\"]
+               :west [\"n2\" \"n3\"]}
+     :links   [{:from \"*\",  :to \"*\",  :latency {:mean 2}}
+               {:from :east, :to :west, :latency {:mean 80
+                                                  :dist :exponential}
+                :p-loss 0.01
+                :bandwidth 1000000
+                :symmetric? true}]}
+
+  Each rule in :links applies to messages from nodes matching :from, to nodes
+  matching :to. A selector matches a node id, a region name, or \"*\" for any
+  node. Rules apply in order, and later rules override the :latency, :p-loss,
+  and :bandwidth of earlier ones. A rule with :symmetric? true applies in both
+  directions. Latency specs are as for latency-dist; :dist defaults to the
+  CLI's --latency-dist.
+
+  Bandwidth is in bytes per second of JSON-encoded message body, and defaults
+  to the CLI's --bandwidth. A link with limited bandwidth sends one message at
+  a time: a message waits for every earlier message on that link to finish
+  transmitting, then takes size/bandwidth seconds to transmit itself, and only
+  then does its latency begin. Unlimited links (bandwidth 0) transmit
+  instantly.
+
+  Presets are strings like `regions-3`, which spreads the test's nodes
+  round-robin across 3 regions with 2 ms links inside a region and 80 ms links
+  between regions, or `regions-3-5-100`, which does the same with 5 ms and
+  100 ms links."
+  (:require [cheshire.core :as json]
+            [clojure.edn :as edn]
+            [clojure.java.io :as io])
+  (:import (java.util SplittableRandom)
+           (java.util.concurrent.atomic AtomicLong)))
+
+; Latency distributions. We draw from these for every message, so they're an
+; interface with a primitive signature, rather than a protocol: no boxing, and
+; no dispatch beyond a virtual call.
+(definterface Distribution
+  (^double draw [^java.util.SplittableRandom rng]))
+
+(defrecord ConstantDistribution [^double x]
+  Distribution
+  (draw [this rng] x))
+
+(defn constant-dist
+  "A constant distribution: always x"
+  [x]
+  (ConstantDistribution. x))
+
+; Uniformly distributed integers in [lower, upper).
+(defrecord UniformDistribution [^long lower ^long upper]
+  Distribution
+  (draw [this rng]
+    (if (< lower upper)
+      (double (.nextLong ^SplittableRandom rng lower upper))
+      (double lower))))
+
+(defn uniform-dist
+  "A uniform distribution of integers from lower, inclusive, to upper,
+  exclusive."
+  [lower upper]
+  (UniformDistribution. lower upper))
+
+(defrecord ExponentialDistribution [^double mean]
+  Distribution
+  (draw [this rng]
+    (* mean -1.0 (Math/log (- 1.0 (.nextDouble ^SplittableRandom rng))))))
+
+(defn exponential-dist
+  "An exponential distribution with the given mean."
+  [mean]
+  (ExponentialDistribution. mean))
+
+(defn latency-dist
+  "Takes options:
+
+    :mean   The mean latency
+    :dist   The shape of the distribution of latencies injected
+
+  and yields a Distribution, used to generate latencies for each message."
+  [{:keys [dist mean]}]
+  (case dist
+    :constant     (constant-dist mean)
+    :uniform      (uniform-dist 0 (* 2 mean))
+    :exponential  (exponential-dist mean)))
+
+; A single directed link. latency is a Distribution of latencies in ms, and
+; p-loss is the probability that the link loses any given message. bandwidth
+; is in bytes/sec, or 0 for unlimited, and busy-until is an AtomicLong of the
+; time, in nanoseconds on the network's clock, when the link finishes
+; transmitting everything handed to it so far. Since busy-until is mutable,
+; every pair of nodes gets its own Link.
+(defrecord Link [^Distribution latency
+                 ^double p-loss
+                 ^long bandwidth
+                 ^AtomicLong busy-until])
+
+(defn link
+  "Constructs a link from a latency Distribution, a loss probability, and an
+  optional bandwidth in bytes/sec."
+  ([latency p-loss]
+   (link latency p-loss 0))
+  ([latency p-loss bandwidth]
+   (Link. latency p-loss bandwidth (AtomicLong. Long/MIN_VALUE))))
+
+(defn transmit!
+  "Hands a message of size bytes to a link at time now, in nanoseconds.
+  Returns how many nanoseconds from now until the link finishes transmitting
+  it. Unlimited links always return 0."
+  ^long [^Link link ^long now ^long size]
+  (let [bandwidth (.bandwidth link)]
+    (if (<= bandwidth 0)
+      0
+      (let [^AtomicLong busy-until (.busy-until link)
+            tx                     (long (/ (* size 1e9) bandwidth))]
+        (loop []
+          (let [busy  (.get busy-until)
+                done  (+ (max now busy) tx)]
+            (if (.compareAndSet busy-until busy done)
+              (- done now)
+              (recur))))))))
+
+;; Specs
+
+(defn regions-preset
+  "A link model spec which spreads nodes round-robin across n regions, with
+  intra-ms latency inside each region, and inter-ms latency between them."
+  [nodes n intra inter]
+  (let [regions (->> nodes
+                     (map-indexed (fn [i node] [(str "region-" (mod i n)) node]))
+                     (reduce (fn [regions [region node]]
+                               (update regions region (fnil conj []) node))
+                             (sorted-map)))]
+    {:regions regions
+     :links   (into [{:from "*", :to "*", :latency {:mean inter}}]
+                    (map (fn [region]
+                           {:from region, :to region, :latency {:mean intra}}))
+                    (keys regions))}))
+
+(defn preset
+  "Parses a preset string like \"regions-3\" or \"regions-3-2-80\" into a spec,
+  given the test's nodes. Returns nil if the string isn't a preset. There
+  has to be at least one region."
+  [nodes s]
+  (when-let [[_ n intra inter] (re-find
+                                 #"^regions-([1-9]\d*)(?:-(\d+)-(\d+))?$"
+                                 s)]
+    (regions-preset nodes
+                    (Long/parseLong n)
+                    (if intra (Long/parseLong intra) 2)
+                    (if inter (Long/parseLong inter) 80))))
+
+(defn load-spec
+  "Takes a path to an EDN or JSON file, or a preset string, and the test's
+  nodes. Returns a link model spec."
+  [nodes s]
+  (or (preset nodes s)
+      (let [f (io/file s)]
+        (assert (.exists f)
+                (str "Link model " (pr-str s)
+                     " is neither a preset nor an existing file"))
+        (if (re-find #"\.json$" s)
+          (json/parse-string (slurp f) true)
+          (edn/read-string (slurp f))))))
+
+(defn selector-matcher
+  "Takes a map of region names to sets of node ids, and a selector. Returns a
+  predicate on node ids."
+  [regions selector]
+  (let [selector (name selector)]
+    (if (= "*" selector)
+      (constantly true)
+      (let [members (get regions selector #{selector})]
+        (fn [node-id] (contains? members node-id))))))
+
+(defn model
+  "Compiles a link model spec into a function (f src-id dest-id) which returns
+  a new Link between two nodes. Takes the default latency spec (see
+  latency-dist) from the CLI, which provides the default :dist, and the
+  default bandwidth; these make up the link for pairs no rule matches."
+  [spec default-latency default-bandwidth]
+  (let [regions (->> (:regions spec)
+                     (map (fn [[region nodes]] [(name region) (set nodes)]))
+                     (into {}))
+        rules   (->> (:links spec)
+                     (mapcat (fn [rule]
+                               (if (:symmetric? rule)
+                                 [rule (assoc rule
+                                              :from (:to rule)
+                                              :to   (:from rule))]
+                                 [rule])))
+                     (mapv (fn [{:keys [from to latency p-loss bandwidth]}]
+                             {:from?     (selector-matcher regions from)
+                              :to?       (selector-matcher regions to)
+                              :latency   (when latency
+                                           (-> default-latency
+                                               (merge latency)
+                                               (update :dist keyword)
+                                               latency-dist))
+                              :p-loss    p-loss
+                              :bandwidth bandwidth})))
+        default {:latency   (latency-dist default-latency)
+                 :p-loss    0
+                 :bandwidth (or default-bandwidth 0)}]
+    (fn link-between [src dest]
+      (let [l (reduce (fn [l rule]
+                        (if (and ((:from? rule) src) ((:to? rule) dest))
+                          ; Rules only override what they specify
+                          (into l
+                                (filter val)
+                                (select-keys rule [:latency
+                                                   :p-loss
+                                                   :bandwidth]))
+                          l))
+                      default
+                      rules)]
+        (link (:latency l) (:p-loss l) (:bandwidth l))))))
@@ -0,0 +1,95 @@
+(ns maelstrom.net.merge
+  "Lazily merges sequences which are each sorted by a long key into a single
+  sorted sequence. We use this to read the journal's stripes in global event
+  id order without collecting and sorting them.
+
+  The sources' current heads live in a binary min-heap keyed by primitive
+  longs, so comparisons never box, and we only ever hold one element from
+  each source."
+  (:refer-clojure :exclude [pop!]))
+
+; keys and sources are parallel arrays: each entry's key, and the index of the
+; source it came from. size is a one-element array of how many entries are in
+; use.
+(deftype Heap [^longs keys ^ints sources ^longs size])
+
+(defn heap
+  "A heap with room for k entries."
+  [k]
+  (Heap. (long-array k) (int-array k) (long-array 1)))
+
+(defn size
+  "How many entries are in a heap?"
+  ^long [^Heap h]
+  (aget ^longs (.size h) 0))
+
+(defn push!
+  "Adds an entry for the given source, with the given key, to a heap."
+  [^Heap h ^long key ^long source]
+  (let [^longs keys    (.keys h)
+        ^ints sources  (.sources h)
+        ^longs size    (.size h)
+        i              (aget size 0)]
+    (aset size 0 (inc i))
+    ; Move parents down until we find where key belongs
+    (loop [i i]
+      (let [parent (bit-shift-right (dec i) 1)]
+        (if (and (pos? i) (< key (aget keys parent)))
+          (do (aset keys i (aget keys parent))
+              (aset sources i (aget sources parent))
+              (recur parent))
+          (do (aset keys i key)
+              (aset sources i (int source))))))
+    h))
+
+(defn pop!
+  "Removes the entry with the smallest key from a non-empty heap, and returns
+  its source."
+  ^long [^Heap h]
+  (let [^longs keys    (.keys h)
+        ^ints sources  (.sources h)
+        ^longs size    (.size h)
+        top            (aget sources 0)
+        n              (dec (aget size 0))
+        ; We move the last entry into the hole at the root, and sift it down.
+        key            (aget keys n)
+        source         (aget sources n)]
+    (aset size 0 n)
+    (loop [i 0]
+      (let [l (inc (* 2 i))
+            r (inc l)
+            c (if (and (< r n) (< (aget keys r) (aget keys l))) r l)]
+        (if (and (< l n) (< (aget keys c) key))
+          (do (aset keys i (aget keys c))
+              (aset sources i (aget sources c))
+              (recur c))
+          (do (aset keys i key)
+              (aset sources i source)))))
+    (long top)))
+
+(defn merge-by
+  "Takes a function which returns a long key for each element, and a
+  collection of sequences, each sorted by that key. Returns a lazy sequence
+  of all their elements, sorted by key. Holds on to only the unconsumed part
+  of each sequence, so memory use depends on how many sequences there are,
+  rather than how long they are."
+  [key-fn colls]
+  (lazy-seq
+    (let [colls (vec colls)
+          heads (object-array (count colls))
+          h     (heap (count colls))
+          step  (fn step []
+                  (lazy-seq
+                    (when (pos? (size h))
+                      (let [i (pop! h)
+                            s (aget heads i)]
+                        (if-let [more (next s)]
+                          (do (aset heads i more)
+                              (push! h (long (key-fn (first more))) i))
+                          (aset heads i nil))
+                        (cons (first s) (step))))))]
+      (dotimes [i (count colls)]
+        (when-let [s (seq (nth colls i))]
+          (aset heads i s)
+          (push! h (long (key-fn (first s))) i)))
+      (step))))
@@ -1,11 +1,12 @@
 (ns maelstrom.net.message
   "Contains operations specifically related to network messages; used by both
   net and net.journal."
-  (:require [schema.core :as s]))
+  (:require [maelstrom.net [node :as node]]
+            [schema.core :as s]))
 
 
-
-(defrecord Message [^long id src dest body])
+; src and dest are node numbers, as assigned by maelstrom.net.node.
+(defrecord Message [^long id ^long src ^long dest body])
 
 (defn message
   "Constructs a new Message. If no ID is provided, uses -1."
@@ -14,6 +15,12 @@
   ([id src dest body]
    (Message. id src dest body)))
 
+(defn involves-client?
+  "Does a given message involve a client?"
+  [^Message m]
+  (or (node/client? (.src m))
+      (node/client? (.dest m))))
+
 (defn validate
   "Checks to make sure a message is well-formed. Returns msg if legal,
   otherwise throws."
@@ -0,0 +1,104 @@
+(ns maelstrom.net.node
+  "Node ids are strings wherever they meet the outside world--JSON messages,
+  the CLI, test maps--but inside the network, where we handle every message,
+  we refer to nodes by small integers instead. A registry interns each node id
+  the first time we see it, and remembers the mapping so that we can turn
+  numbers back into ids at the JSON boundary and when analyzing the journal.
+
+  The low two bits of a node number encode what kind of node it is--a server,
+  a client, or a Maelstrom service--so questions like 'does this message
+  involve a client?' are a bit test, with no lookups at all. The remaining
+  bits are a dense counter per kind, which keeps server numbers small even
+  when clients come and go."
+  (:require [maelstrom [util :as u]])
+  (:import (java.util Arrays)
+           (java.util.concurrent ConcurrentHashMap)))
+
+(def kinds
+  "Node kinds, and the tag bits we use for each."
+  {:server  0
+   :client  1
+   :service 2})
+
+(defn client?
+  "Is the given node number a client?"
+  [^long n]
+  (== 1 (bit-and n 3)))
+
+(defn service?
+  "Is the given node number a Maelstrom service?"
+  [^long n]
+  (== 2 (bit-and n 3)))
+
+(defn server?
+  "Is the given node number a server?"
+  [^long n]
+  (== 0 (bit-and n 3)))
+
+; numbers is a ConcurrentHashMap of node ids to Long node numbers. names is a
+; volatile array of node ids, indexed by node number; it's copied on every
+; registration, which is rare, so that lookups can be plain array reads.
+; counts is a long array of the next counter for each kind, guarded by the
+; registry's lock.
+(defrecord Registry [numbers names counts])
+
+(defn registry
+  "Constructs a new, empty registry."
+  []
+  (Registry. (ConcurrentHashMap.)
+             (volatile! (object-array 0))
+             (long-array (count kinds))))
+
+(defn infer-kind
+  "Guesses what kind of node a node id refers to, from its name."
+  [node-id]
+  (if (u/client? node-id) :client :server))
+
+(defn intern!
+  "Returns the number for a node id, registering it if this is the first we've
+  heard of it. If no kind is given, infers one from the name. A node keeps its
+  number even if it is removed from the network and added again."
+  ([registry node-id]
+   (or (.get ^ConcurrentHashMap (:numbers registry) node-id)
+       (intern! registry node-id (infer-kind node-id))))
+  ([registry node-id kind]
+   (let [^ConcurrentHashMap numbers (:numbers registry)]
+     (or (.get numbers node-id)
+         (locking registry
+           (or (.get numbers node-id)
+               (let [^longs counts (:counts registry)
+                     tag           (long (get kinds kind))
+                     n             (-> (aget counts tag)
+                                       (bit-shift-left 2)
+                                       (bit-or tag))
+                     ^objects names @(:names registry)
+                     names'        (Arrays/copyOf names
+                                                  (int (max (alength names)
+                                                            (inc n))))]
+                 (aset counts tag (inc (aget counts tag)))
+                 (aset names' n node-id)
+                 (vreset! (:names registry) names')
+                 (.put numbers node-id n)
+                 n)))))))
+
+(defn number
+  "Takes a node id or node number, and returns its node number. Unlike intern!,
+  returns nil if the node id has never been registered."
+  [registry node]
+  (if (instance? Long node)
+    node
+    (.get ^ConcurrentHashMap (:numbers registry) node)))
+
+(defn id
+  "Returns the node id string for a node number."
+  [registry ^long n]
+  (let [^objects names @(:names registry)]
+    (aget names n)))
+
+(defn id-map
+  "Returns a map of node numbers to node ids, for every node we've registered.
+  Used to persist the registry alongside the journal."
+  [registry]
+  (into (sorted-map)
+        (map (fn [[id n]] [n id]))
+        (:numbers registry)))
@@ -0,0 +1,85 @@
+(ns maelstrom.net.ring
+  "A bounded, lock-free, multi-producer single-consumer ring buffer, after
+  Dmitry Vyukov's bounded MPMC queue.
+
+  Every cell has a sequence number alongside its value. A producer claims the
+  next cell by advancing the tail with a CAS, writes its value, then publishes
+  it by bumping the cell's sequence. The consumer knows a cell is ready when
+  its sequence says so, and frees it for the producer one lap later by
+  bumping the sequence again. Producers only contend with each other on the
+  tail, and never with the consumer; nobody ever takes a lock."
+  (:import (java.util.concurrent.atomic AtomicLong
+                                        AtomicLongArray
+                                        AtomicReferenceArray)))
+
+; mask is capacity - 1; capacity is a power of two. head is only touched by
+; the consumer, so it's a plain long array of one element.
+(deftype Ring [^long mask
+               ^AtomicLongArray sequences
+               ^AtomicReferenceArray cells
+               ^AtomicLong tail
+               ^longs head])
+
+(defn ring
+  "Constructs a ring with room for at least capacity elements."
+  [capacity]
+  (let [c         (Long/highestOneBit (max 2 (long capacity)))
+        capacity  (if (< c (long capacity)) (* 2 c) c)
+        sequences (AtomicLongArray. (int capacity))]
+    (dotimes [i capacity]
+      (.set sequences i i))
+    (Ring. (dec capacity)
+           sequences
+           (AtomicReferenceArray. (int capacity))
+           (AtomicLong. 0)
+           (long-array 1))))
+
+(defn capacity
+  "How many elements can this ring hold?"
+  ^long [^Ring r]
+  (inc (.mask r)))
+
+(defn offer!
+  "Tries to add x to the ring. Returns true if it did, or false if the ring
+  was full. Safe to call from any thread."
+  [^Ring r x]
+  (let [mask                       (.mask r)
+        ^AtomicLongArray sequences (.sequences r)
+        ^AtomicLong tail           (.tail r)]
+    (loop []
+      (let [pos (.get tail)
+            i   (int (bit-and pos mask))
+            dif (- (.get sequences i) pos)]
+        (cond ; This cell is free for us; try to claim it.
+              (zero? dif)
+              (if (.compareAndSet tail pos (inc pos))
+                (do (.lazySet ^AtomicReferenceArray (.cells r) i x)
+                    ; Publish
+                    (.set sequences i (inc pos))
+                    true)
+                (recur))
+
+              ; The consumer hasn't freed this cell yet: we're full.
+              (neg? dif)
+              false
+
+              ; Someone else claimed this cell already; try again.
+              true
+              (recur))))))
+
+(defn poll!
+  "Removes and returns the oldest element in the ring, or nil if it's empty.
+  Only one thread may consume from a ring."
+  [^Ring r]
+  (let [^longs head (.head r)
+        pos         (aget head 0)
+        i           (int (bit-and pos (.mask r)))
+        ^AtomicLongArray sequences (.sequences r)]
+    (when (= (.get sequences i) (inc pos))
+      (let [^AtomicReferenceArray cells (.cells r)
+            x                           (.get cells i)]
+        (.lazySet cells i nil)
+        (aset head 0 (inc pos))
+        ; Free the cell for the producer one lap from now
+        (.set sequences i (+ pos (capacity r)))
+        x))))
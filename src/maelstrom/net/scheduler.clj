@@ -0,0 +1,192 @@
+(ns maelstrom.net.scheduler
+  "Delivers in-flight messages to nodes once their latency has elapsed.
+
+  Every message with a nonzero latency is wrapped in an Envelope and handed to
+  a scheduler, which delivers the message to its destination node's ready
+  queue once its deadline arrives. Nodes receive by polling their ready queue,
+  so they never sleep waiting on one particular message: a message which
+  arrives later, but with an earlier deadline, is delivered first.
+
+  There are two schedulers. The realtime scheduler keeps envelopes in a
+  DelayQueue, and delivers them when System/nanoTime reaches their deadline.
+  The virtual scheduler keeps its own simulated clock. It delivers envelopes
+  in deadline order, and only advances the clock when every server has
+  consumed everything delivered to it, so high latency doesn't slow message
+  exchange down: nodes go through rounds of messages as fast as they can
+  process them.
+
+  Only the network runs on the virtual clock. Jepsen's generator, the test's
+  time limit, and client timeouts all still use wall-clock time, so a test
+  takes as long as its time limit either way; virtual time just packs more
+  simulated network time into it."
+  (:require [clojure.tools.logging :refer [info warn]]
+            [jepsen.util :as util])
+  (:import (java.util ArrayList)
+           (java.util.concurrent BlockingQueue
+                                 Delayed
+                                 DelayQueue
+                                 PriorityBlockingQueue
+                                 TimeUnit)
+           (java.util.concurrent.atomic AtomicLong)
+           (java.util.concurrent.locks LockSupport)))
+
+(defprotocol Scheduler
+  (start! [scheduler idle?]
+          "Starts delivering messages. Takes a function which returns true
+          when every node has consumed all the messages delivered to it.
+          Returns scheduler.")
+
+  (stop! [scheduler]
+         "Stops delivering messages, and discards any still in flight.
+         Returns scheduler.")
+
+  (now [scheduler]
+       "The current time, in nanoseconds, on this scheduler's clock.")
+
+  (schedule! [scheduler deadline message deliver]
+             "Schedules a message for delivery once this scheduler's clock
+             reaches deadline. Delivery calls (deliver message), which puts
+             the message on its destination's ready queue."))
+
+; An envelope carries a message, the deadline (in the scheduler's clock) at
+; which it should be delivered, and a function which delivers it to its
+; destination. We resolve the destination at send time so delivery never
+; needs to look anything up.
+(deftype Envelope [^long deadline message deliver]
+  Delayed
+  (getDelay [_ unit]
+    (.convert unit (- deadline (System/nanoTime)) TimeUnit/NANOSECONDS))
+
+  Comparable
+  (compareTo [_ other]
+    (Long/compare deadline (.deadline ^Envelope other))))
+
+(defn deliver!
+  "Delivers an envelope's message."
+  [^Envelope e]
+  ((.deliver e) (.message e)))
+
+(defmacro spawn-worker
+  "Spawns a thread which runs body repeatedly while running? is true, handling
+  shutdown and logging errors."
+  [running? & body]
+  `(future
+     (util/with-thread-name "maelstrom net scheduler"
+       (try
+         (while @~running?
+           ~@body)
+         :done
+         (catch InterruptedException e#
+           ; Normal shutdown
+           :interrupted)
+         (catch Throwable t#
+           ; Log so we know what's going on; without this thread, no message
+           ; with latency will ever arrive.
+           (warn t# "Error in net scheduler")
+           (throw t#))))))
+
+(defn stop-worker!
+  "Shuts down a scheduler's worker thread and clears its queue."
+  [{:keys [running? worker queue]}]
+  (reset! running? false)
+  (when-let [w @worker]
+    @w
+    (reset! worker nil))
+  (.clear ^BlockingQueue queue))
+
+(defrecord RealtimeScheduler [^DelayQueue queue running? worker]
+  Scheduler
+  (start! [this idle?]
+    (info "Starting realtime network scheduler")
+    (reset! running? true)
+    (reset! worker
+            (let [batch (ArrayList.)]
+              (spawn-worker running?
+                (when-let [e (.poll queue 100 TimeUnit/MILLISECONDS)]
+                  (deliver! e)
+                  ; Anything else which came due while we were waiting
+                  ; can go out in the same pass.
+                  (.drainTo queue batch)
+                  (dotimes [i (.size batch)]
+                    (deliver! (.get batch i)))
+                  (.clear batch)))))
+    this)
+
+  (stop! [this]
+    (stop-worker! this)
+    this)
+
+  (now [this]
+    (System/nanoTime))
+
+  (schedule! [this deadline message deliver]
+    (.put queue (Envelope. deadline message deliver))))
+
+(def quiescence-nanos
+  "How long, in real nanoseconds, must every node be idle before the virtual
+  scheduler advances its clock? Nodes which have just consumed a message may
+  still be working on it, and we want to give them a chance to respond before
+  time moves on."
+  1000000)
+
+(defrecord VirtualScheduler [^PriorityBlockingQueue queue
+                             ^AtomicLong clock
+                             running?
+                             worker]
+  Scheduler
+  (start! [this idle?]
+    (info "Starting virtual-time network scheduler")
+    (reset! running? true)
+    (reset! worker
+            (let [^longs idle-since (long-array 1)]
+              (spawn-worker running?
+                (if-not (idle?)
+                  ; Someone's still busy; time can't advance yet.
+                  (do (aset idle-since 0 0)
+                      (LockSupport/parkNanos 100000))
+                  (let [t (System/nanoTime)]
+                    (when (zero? (aget idle-since 0))
+                      (aset idle-since 0 t))
+                    (if (< (- t (aget idle-since 0)) quiescence-nanos)
+                      (LockSupport/parkNanos 100000)
+                      (if-let [^Envelope e (.poll queue)]
+                        ; Jump to the next deadline, and deliver
+                        ; everything due then.
+                        (do ; We're the only thread which advances
+                            ; the clock.
+                            (when (< (.get clock) (.deadline e))
+                              (.set clock (.deadline e)))
+                            (deliver! e)
+                            (loop []
+                              (let [^Envelope e (.peek queue)]
+                                (when (and e (<= (.deadline e)
+                                                 (.get clock)))
+                                  (deliver! (.poll queue))
+                                  (recur))))
+                            (aset idle-since 0 0))
+                        ; Nothing in flight at all
+                        (LockSupport/parkNanos 1000000))))))))
+    this)
+
+  (stop! [this]
+    (stop-worker! this)
+    this)
+
+  (now [this]
+    (.get clock))
+
+  (schedule! [this deadline message deliver]
+    (.put queue (Envelope. deadline message deliver))))
+
+(defn realtime-scheduler
+  "Constructs a new scheduler which delivers messages in real time."
+  []
+  (RealtimeScheduler. (DelayQueue.) (atom false) (atom nil)))
+
+(defn virtual-scheduler
+  "Constructs a new scheduler with a simulated clock, starting at 0."
+  []
+  (VirtualScheduler. (PriorityBlockingQueue.)
+                     (AtomicLong. 0)
+                     (atom false)
+                     (atom nil)))
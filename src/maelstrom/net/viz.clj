@@ -8,7 +8,8 @@
                       [svg :as svg]]
             [jepsen [store :as store]]
             [maelstrom [util :as u]]
-            [maelstrom.net [journal :as j]]))
+            [maelstrom.net [journal :as j]
+                           [message :as msg]]))
 
 (def journal-limit
   "SVG rendering is pretty expensive; we stop rendering after this many
@@ -16,25 +17,27 @@
   10000)
 
 (defn all-nodes
-  "Takes a journal and returns the collection of all nodes involved in it."
-  [journal]
+  "Takes a map of node numbers to ids, and a journal, and returns the
+  collection of all node ids involved in it."
+  [ids journal]
   (->> journal
        (map :message)
-       (mapcat (juxt :src :dest))
+       (mapcat (fn [m] [(ids (:src m)) (ids (:dest m))]))
        distinct
        u/sort-clients))
 
 (defn messages
-  "Takes a journal and constructs a sequence of messages: each a map with
+  "Takes a map of node numbers to ids, and a journal, and constructs a
+  sequence of messages: each a map with
 
   {:from      A dot node
    :to        A dot node
    :message   The message exchanged}"
-  ([journal]
-   (messages {} 1 (seq journal)))
+  ([ids journal]
+   (messages ids {} 1 (seq journal)))
   ; froms is a map of message IDs to the dot node of their origin.
   ; step is the timestep we're at now--index in the journal, plus one.
-  ([froms step journal]
+  ([ids froms step journal]
    (when journal
      (lazy-seq
        (let [event   (first journal)
@@ -42,25 +45,28 @@
              id      (:id message)]
          (case (:type event)
            ; We're sending a message; remember this in our froms map
-           :send (messages (assoc froms id {:node (:src message)
+           :send (messages ids
+                           (assoc froms id {:node (ids (:src message))
                                             :step step})
                            (inc step)
                            (next journal))
-           ; We're receiving a message; emit an edge.
-           :recv (let [from (get froms id)]
-                   (assert from)
+           ; We're receiving a message; emit an edge. If the journal
+           ; couldn't keep up and dropped the send, we have nowhere to draw
+           ; it from, so we skip it.
+           :recv (if-let [from (get froms id)]
                    (cons {:from     from
-                          :to       {:node (:dest message)
+                          :to       {:node (ids (:dest message))
                                      :step step}
                           :message  message}
-                         (messages froms (inc step) (next journal))))))))))
+                         (messages ids froms (inc step) (next journal)))
+                   (messages ids froms (inc step) (next journal)))))))))
 
 ;; SVG Rendering
 
 (defn layout
   "Constructs a layout object with general information we need to position
-  messages in space."
-  [journal]
+  messages in space. Takes a map of node numbers to ids, and a journal."
+  [ids journal]
   (let [width  1200
         y-step 20
         truncated? (< journal-limit (count journal))
@@ -75,13 +81,14 @@
         ; + 2 for truncation notice at end
         ; + 2 for whitespace
         height     (* y-step (+ 2 1 2 2 step-count))
-        nodes      (all-nodes journal)
+        nodes      (all-nodes ids journal)
         ; A map of nodes to a horizontal index from the left
         node-index (reduce (fn [node-index node]
                              (assoc node-index node (count node-index)))
                            {}
                            nodes)]
     {:journal             journal
+     :ids                 ids
      :full-journal-count  (count full-journal)
      :width       width
      :height      height
@@ -113,7 +120,7 @@
   (cond (= "error" (:type (:body message)))
         "#FF1E90"
 
-        (u/involves-client? message)
+        (msg/involves-client? message)
         "#81BFFC"
 
         :else
@@ -192,7 +199,7 @@
              ; Don't overshoot the arrowhead
              :width  (- length 4)
              :fill   (message->color message)}
-      [:title (str (:src m) " → " (:dest m)
+      [:title (str ((:ids layout) (:src m)) " → " ((:ids layout) (:dest m))
                    " " (pr-str (:body m)))]]
      ; Arrowhead
      [:use {"xlink:href" "#ahead", :x length, :y 0}]
@@ -234,7 +241,7 @@
   [layout]
   (->> layout
        :journal
-       messages
+       (messages (:ids layout))
        (map (partial message-line layout))
        (cons :g)))
 
@@ -287,11 +294,14 @@
         ; the journal limit plus init messages (2 events / msg * 2 messages /
         ; rpc), plus 1
         max-id (+ journal-limit (* (count (:nodes test)) 2 2) 1)
-        journal (->> (j/without-init)
-                     (j/up-to-event max-id)
-                     (j/tesser-journal test))
+        journal (->> (j/events-before test max-id)
+                     (remove j/init?)
+                     (remove j/dropped?)
+                     ; Older journals only have node ids once they're read;
+                     ; see j/node-ids.
+                     vec)
         ; Compute SVG layout
-        layout (layout journal)
+        layout (layout (j/node-ids test) journal)
         ; Render doc
         svg (svg/svg {"version" "2.0"
                       "width"  (+ (:width layout 50))
@@ -7,74 +7,216 @@
             [clojure.tools.logging :refer [info warn]]
             [byte-streams :as bs]
             [cheshire.core :as json]
-            [jepsen.util :refer [with-thread-name]]
-            [maelstrom [net :as net]]
+            [maelstrom [net :as net]
+                       [thread :as thread]]
+            [maelstrom.net [message :as msg]]
             [slingshot.slingshot :refer [try+ throw+]])
   (:import (java.lang Process
                       ProcessBuilder
                       ProcessBuilder$Redirect)
-           (java.io File
+           (java.io BufferedInputStream
+                    ByteArrayInputStream
+                    ByteArrayOutputStream
+                    DataInputStream
+                    DataOutputStream
+                    File
+                    InputStream
                     IOException
+                    OutputStream
                     OutputStreamWriter
+                    PushbackInputStream
+                    SequenceInputStream
                     Writer)
-           (java.util.concurrent TimeUnit)))
+           (java.net SocketAddress
+                     StandardProtocolFamily)
+           (java.nio ByteBuffer)
+           (java.nio.channels ServerSocketChannel
+                              SocketChannel)
+           (java.nio.charset StandardCharsets)
+           (java.util HashMap)
+           (java.util.concurrent TimeUnit)
+           (com.fasterxml.jackson.core JsonFactory
+                                       JsonGenerator
+                                       JsonParseException
+                                       JsonParser
+                                       JsonToken)
+           (com.fasterxml.jackson.dataformat.cbor CBORFactory)
+           (clojure.lang Reflector)))
 
 (def debug-buffer-size
-  "Number of lines of stderr and stdout we store for debugging assistance"
+  "Number of lines of stderr, and messages from stdout, we store for debugging
+  assistance"
   32)
 
-(defn keywordize-keys-1
-  "Converts keys to keywords at a single level of a map."
-  [m]
-  (persistent!
-    (reduce (fn [m [k v]]
-              (assoc! m (keyword k) v))
-            (transient {})
-            m)))
-
-(defn parse-msg
-  "Parses a line as a message, throwing appropriate exceptions.
-
-  We may be dealing in arbitrary JSON payloads, and coercing all keys to
-  keywords may really mess up maps like {\"9\": true}. I don't know a rigorous
-  way to eliminate this problem yet--schema.core's coercion might come in handy
-  but I don't really underSTAND it yet. For right now, we convert just the keys
-  in the message and body, to one level. Nothing is nested deeper than that
-  anyway."
-  [node-id line]
-  (let [parsed (try (json/parse-string line)
-                    (catch com.fasterxml.jackson.core.JsonParseException e
-                      (throw+ {:type :line-not-valid-json
-                               :line line}
-                              (str "Node " node-id
-                                   " printed a line to STDOUT which was not well-formed JSON:\n" line "\nDid you mean to encode this line as JSON? Or was this line intended for STDERR? See doc/protocol.md for more guidance."))))
-        ; Convert string keys to keywords
-        message (-> parsed
-                    keywordize-keys-1
-                    (update :body keywordize-keys-1))]
-    ; Validate
-    (when-let [errors (net/check-message message)]
-      (throw+ {:type    :malformed-message
-               :message message
-               :error   errors}
-              (str "Malformed network message. Node " node-id
-                   " tried to send the following message via STDOUT:\n\n"
-                   (with-out-str (pprint message))
-                   "\nThis is malformed because:\n\n"
-                   (with-out-str (pprint errors))
-                   "\nSee doc/protocol.md for more guidance.")))
-    message))
+(def ^JsonFactory json-factory
+  "Makes streaming JSON parsers for node output."
+  (JsonFactory.))
+
+(def key-cache-limit
+  "How many distinct body keys do we cache keywords for, per node? Bodies
+  have a handful of protocol keys, but nodes could put anything in them, and
+  we don't want to grow without bound."
+  1024)
+
+(defn cached-keyword
+  "Returns the keyword for a string, from a node's cache of them, if possible.
+  Interning keywords is surprisingly expensive, and we do it for every key of
+  every body."
+  [^HashMap cache ^String k]
+  (or (.get cache k)
+      (let [kw (keyword k)]
+        (when (< (.size cache) (long key-cache-limit))
+          (.put cache k kw))
+        kw)))
+
+(defn read-json
+  "Reads the JSON value starting at a parser's current token, the way
+  cheshire's parse-string does: objects become maps with string keys, and
+  arrays become vectors."
+  [^JsonParser p]
+  (let [t (.getCurrentToken p)]
+    (condp identical? t
+      JsonToken/START_OBJECT
+      (loop [m (transient {})]
+        (if (identical? JsonToken/FIELD_NAME (.nextToken p))
+          (let [k (.getCurrentName p)]
+            (.nextToken p)
+            (recur (assoc! m k (read-json p))))
+          (persistent! m)))
+
+      JsonToken/START_ARRAY
+      (loop [v (transient [])]
+        (if (identical? JsonToken/END_ARRAY (.nextToken p))
+          (persistent! v)
+          (recur (conj! v (read-json p)))))
+
+      JsonToken/VALUE_STRING          (.getText p)
+      JsonToken/VALUE_NUMBER_INT      (.getNumberValue p)
+      JsonToken/VALUE_NUMBER_FLOAT    (.getDoubleValue p)
+      ; CBOR byte strings
+      JsonToken/VALUE_EMBEDDED_OBJECT (.getEmbeddedObject p)
+      JsonToken/VALUE_TRUE            true
+      JsonToken/VALUE_FALSE           false
+      JsonToken/VALUE_NULL            nil)))
+
+(defn write-json!
+  "Writes a Clojure value to a Jackson generator, the way cheshire would:
+  keywords become strings, and sequential collections and sets become
+  arrays."
+  [^JsonGenerator g x]
+  (cond (map? x)        (do (.writeStartObject g)
+                            (doseq [[k v] x]
+                              (.writeFieldName g (if (keyword? k)
+                                                   (name k)
+                                                   (str k)))
+                              (write-json! g v))
+                            (.writeEndObject g))
+        (string? x)     (.writeString g ^String x)
+        (keyword? x)    (.writeString g (name x))
+        (nil? x)        (.writeNull g)
+        (boolean? x)    (.writeBoolean g (boolean x))
+        (instance? BigInteger x) (.writeNumber g ^BigInteger x)
+        (instance? clojure.lang.BigInt x)
+        (.writeNumber g (.toBigInteger ^clojure.lang.BigInt x))
+        (integer? x)    (.writeNumber g (long x))
+        (number? x)     (.writeNumber g (double x))
+        (or (sequential? x) (set? x))
+        (do (.writeStartArray g)
+            (doseq [v x] (write-json! g v))
+            (.writeEndArray g))
+        true            (.writeString g (str x))))
+
+(defn malformed!
+  "Throws for a message which doesn't match the protocol. Takes what we've
+  parsed of it so far, which should include the offending part, and
+  optionally a description of the errors; by default, we check the message
+  against net/Message."
+  ([node-id message]
+   (malformed! node-id message (net/check-message message)))
+  ([node-id message errors]
+   (throw+ {:type    :malformed-message
+            :message message
+            :error   errors}
+           (str "Malformed network message. Node " node-id
+                " tried to send the following message via STDOUT:\n\n"
+                (with-out-str (pprint message))
+                "\nThis is malformed because:\n\n"
+                (with-out-str (pprint errors))
+                "\nSee doc/protocol.md for more guidance."))))
+
+(defn read-body
+  "Reads a message body at a parser's current token. Converts the body's
+  keys, but not any deeper ones, to keywords: we may be dealing in arbitrary
+  JSON payloads, and coercing all keys to keywords may really mess up maps
+  like {\"9\": true}."
+  [node-id ^JsonParser p cache]
+  (if (identical? JsonToken/START_OBJECT (.getCurrentToken p))
+    (loop [m (transient {})]
+      (if (identical? JsonToken/FIELD_NAME (.nextToken p))
+        (let [k (cached-keyword cache (.getCurrentName p))]
+          (.nextToken p)
+          (recur (assoc! m k (read-json p))))
+        (persistent! m)))
+    (malformed! node-id
+                {:body (read-json p)}
+                {:body "must be a JSON object"})))
+
+(defn read-message
+  "Reads a message from a parser positioned at the start of a JSON object,
+  and returns it as a Message, with node numbers from the network. We read
+  the message straight from the stream, in a single pass, without building a
+  String or an intermediate map. Throws if the message is malformed."
+  [node-id net ^JsonParser p cache]
+  (loop [message {}]
+    (if (identical? JsonToken/FIELD_NAME (.nextToken p))
+      (let [k (.getCurrentName p)]
+        (.nextToken p)
+        (case k
+          "src"  (recur (assoc message :src (read-json p)))
+          "dest" (recur (assoc message :dest (read-json p)))
+          "body" (recur (assoc message :body (read-body node-id p cache)))
+          ; Checked, but otherwise ignored; the network assigns ids
+          "id"   (recur (assoc message :id (read-json p)))
+          (malformed! node-id (assoc message (keyword k) (read-json p)))))
+      (let [{:keys [src dest body id]} message]
+        (when-not (and (string? src)
+                       (string? dest)
+                       (contains? message :body)
+                       (or (nil? id) (integer? id)))
+          (malformed! node-id message))
+        (msg/message (net/node-number net src)
+                     (net/node-number net dest)
+                     body)))))
+
+(def framings
+  "Nodes may ask, in their init_ok, for length-prefixed framing instead of
+  newline-delimited JSON. These are the framings they may choose, by name, and
+  the Jackson factories which encode each frame's message."
+  {"json" json-factory
+   "cbor" (CBORFactory.)})
+
+(defn not-json!
+  "Throws for node output which isn't well-formed JSON. Takes a description
+  of the problem."
+  [node-id problem]
+  (throw+ {:type    :line-not-valid-json
+           :problem problem}
+          (str "Node " node-id
+               " printed something to STDOUT which was not well-formed JSON:\n" problem "\nDid you mean to encode this line as JSON? Or was this line intended for STDERR? See doc/protocol.md for more guidance.")))
 
 (defmacro io-thread
-  "Spawns an IO thread for a process. Takes a running? atom, a node id, a
-  thread name (e.g. \"stdin\"), [sym closable-expression ...] bindings (for
-  with-open), a single loop-recur binding, and a body. Spawns a future, holding
-  the closeable open, evaluating body in the loop-recur bindings as long as
+  "Spawns an IO thread for a process. Takes whether to use a virtual thread
+  (see maelstrom.thread/spawn), a running? atom, a node id, a thread name
+  (e.g. \"stdin\"), [sym closable-expression ...] bindings (for with-open), a
+  single loop-recur binding, and a body. Spawns a future, holding the
+  closeable open, evaluating body in the loop-recur bindings as long as
   `running?` is true, and catching/logging exceptions. Body should return the
   next value for the loop iteration, or `nil` to terminate."
-  [running? node-id thread-type open-bindings loop-binding & body]
-  `(future
-     (with-thread-name (str ~node-id " " ~thread-type)
+  [virtual? running? node-id thread-type open-bindings loop-binding & body]
+  `(thread/spawn
+     ~virtual?
+     (str ~node-id " " ~thread-type)
+     (fn []
        (try
          (with-open ~open-bindings
            ; There is technically a race condition here: we might be
@@ -114,8 +256,9 @@
 
 (defn stderr-thread
   "Spawns a future which handles stderr from a process."
-  [^Process p running? node-id debug-buffer ^Writer log-writer log-stderr?]
-  (io-thread running? node-id "stderr"
+  [virtual? ^Process p running? node-id debug-buffer ^Writer log-writer
+   log-stderr?]
+  (io-thread virtual? running? node-id "stderr"
              [log log-writer]
              [lines (bs/to-line-seq (.getErrorStream p))]
              (when (seq lines)
@@ -133,37 +276,284 @@
 
                  (next lines)))))
 
+(defn read-line-message
+  "Reads the next newline-delimited JSON message from a parser, or returns nil
+  at the end of the stream."
+  [node-id net ^JsonParser parser cache]
+  (when-let [t (try (.nextToken parser)
+                    (catch JsonParseException e
+                      (not-json! node-id (.getMessage e))))]
+    (when-not (identical? JsonToken/START_OBJECT t)
+      (not-json! node-id (str "Expected a JSON object, but got "
+                              (pr-str (read-json parser)))))
+    (try (read-message node-id net parser cache)
+         (catch JsonParseException e
+           (not-json! node-id (.getMessage e))))))
+
+(defn read-frame
+  "Reads a length-prefixed frame from a stream, and parses the message in it
+  with a Jackson factory. Takes a one-element array of a byte buffer, which
+  we reuse, and grow as needed."
+  [node-id net ^DataInputStream in ^JsonFactory factory ^objects buf cache]
+  (let [n (.readInt in)
+        _ (when (neg? n)
+            (not-json! node-id (str "Frame length " n " is negative")))
+        ^bytes b (let [^bytes b (aget buf 0)]
+                   (if (< (alength b) n)
+                     (let [b (byte-array (max n (* 2 (alength b))))]
+                       (aset buf 0 b)
+                       b)
+                     b))]
+    (.readFully in b 0 (int n))
+    (try
+      (with-open [p (.createParser factory b 0 (int n))]
+        (when-not (identical? JsonToken/START_OBJECT (.nextToken p))
+          (not-json! node-id "Expected a frame to hold an object"))
+        (read-message node-id net p cache))
+      (catch JsonParseException e
+        (not-json! node-id (.getMessage e))))))
+
+(defn frame-input
+  "Once a node has sent its init_ok, a line of JSON, and switched to frames,
+  returns a DataInputStream of those frames. Takes the parser which read the
+  init_ok, which may have read ahead into the first frames, and the stream
+  it was reading.
+
+  Jackson stops at the init_ok's closing brace, so we skip the whitespace
+  which ends its line; otherwise the newline would become the top byte of
+  the first frame's length."
+  ^DataInputStream [^JsonParser parser ^InputStream in]
+  (let [ahead (ByteArrayOutputStream.)
+        _     (.releaseBuffered parser ahead)
+        in    (PushbackInputStream.
+                (SequenceInputStream.
+                  (ByteArrayInputStream. (.toByteArray ahead))
+                  in))]
+    (loop []
+      (let [b (.read in)]
+        (case b
+          (9 10 13 32) (recur)
+          -1           nil
+          (.unread in b))))
+    (DataInputStream. in)))
+
 (defn stdout-thread
   "Spawns a future which reads stdout from a process and inserts messages into
-  the network."
-  [^Process p running? node-id debug-buffer net]
-  (io-thread running? node-id "stdout"
-             []
-             [lines (bs/to-line-seq (.getInputStream p))]
-             (when (seq lines)
-               (let [line (first lines)]
-                 ; Parse and insert into network
-                 (try+ (let [parsed (parse-msg node-id line)]
-                         (net/send! net parsed)))
+  the network. Messages are JSON objects, one after the next; we parse them
+  straight from the stream, with a cache of body keywords for this node.
 
-                 ; Debugging buffer
-                 (swap! debug-buffer conj line)
+  open-in is a function which returns the stream to read: see transport.
 
-                 (next lines)))))
+  If framing is non-nil, we offered the node framing in its init message, and
+  framing is a promise we deliver with the framing it chose in its init_ok,
+  or nil if it didn't choose one. After that init_ok, we read frames."
+  [virtual? open-in running? node-id debug-buffer net framing]
+  (let [; Once the node switches to frames, a [factory DataInputStream].
+        framed (volatile! nil)
+        buf    (object-array [(byte-array 4096)])]
+    (io-thread virtual? running? node-id "stdout"
+               [^InputStream in (open-in)
+                parser          (.createParser json-factory in)]
+               [cache (HashMap.)]
+               (when cache
+                 (when-let [message (if-let [[factory frames] @framed]
+                                      (read-frame node-id net frames factory
+                                                  buf cache)
+                                      (read-line-message node-id net parser
+                                                         cache))]
+                   ; Insert into network
+                   (net/send! net message)
+
+                   ; Debugging buffer
+                   (swap! debug-buffer conj message)
+
+                   (when (and framing
+                              (not (realized? framing))
+                              (= "init_ok" (:type (:body message))))
+                     (let [chosen (:framing (:body message))]
+                       (deliver framing (when (framings chosen) chosen))
+                       (when chosen
+                         (when-not (framings chosen)
+                           (throw+ {:type    :unknown-framing
+                                    :node    node-id
+                                    :framing chosen}
+                                   nil
+                                   (str "Node " node-id " asked for framing "
+                                        (pr-str chosen) ", but we only know "
+                                        (pr-str (sort (keys framings))))))
+                         (vreset! framed [(framings chosen)
+                                          (frame-input parser in)]))))
+
+                   cache)))))
+
+(def stdin-batch-size
+  "At most how many messages do we write to a process's stdin at once?"
+  1024)
+
+(defn encode-message!
+  "Writes a message, as a line of JSON, to a writer."
+  [net ^Writer w message]
+  (json/generate-stream (net/external net message) w)
+  (.write w "\n"))
+
+(defn encode-frame!
+  "Writes a message as a frame: the length of its encoding, as a four-byte
+  big-endian int, then its encoding by a Jackson factory. Encodes into
+  scratch, which we reuse."
+  [net ^JsonFactory factory ^ByteArrayOutputStream scratch
+   ^DataOutputStream out message]
+  (.reset scratch)
+  (with-open [g (.createGenerator factory scratch)]
+    (write-json! g (net/external net message)))
+  (.writeInt out (.size scratch))
+  (.writeTo scratch out))
+
+(defn init?
+  "Is this an init message?"
+  [message]
+  (= "init" (:type (:body message))))
 
 (defn stdin-thread
   "Spawns a future which reads messages from the network and submits them to a
-  process's stdin."
-  [^Process p running? node-id net]
-  (io-thread running? node-id "stdin"
-             [w (OutputStreamWriter. (.getOutputStream p))]
-             [_ true]
-             (do (when-let [msg (net/recv! net node-id 1000)]
-                   (json/generate-stream msg w)
-                   (.write w "\n")
-                   (.flush w))
-                 ; We always recur; our input is unbounded.
-                 true)))
+  process's stdin.
+
+  Rather than flush every message on its own, we take every message that's
+  already due for the node, up to stdin-batch-size, encode them all into a
+  buffer we reuse, and write that to the process at once. With a positive
+  max-batch-latency, in ms, we also wait that long after the first message of
+  a batch for more to arrive.
+
+  open-out is a function which returns the stream to write: see transport.
+
+  If framing is non-nil, it's a promise of the framing the node chose in its
+  init_ok; see stdout-thread. Once we've written the init message, we wait
+  for that choice, and write everything after in that framing."
+  [virtual? open-out running? node-id net max-batch-latency framing]
+  (let [buf     (ByteArrayOutputStream. 65536)
+        w       (OutputStreamWriter. buf StandardCharsets/UTF_8)
+        frames  (DataOutputStream. buf)
+        scratch (ByteArrayOutputStream. 1024)
+        ; Once the node switches to frames, the factory to encode them with
+        factory (volatile! nil)
+        encode! (fn [msg]
+                  (if-let [f @factory]
+                    (encode-frame! net f scratch frames msg)
+                    (encode-message! net w msg)))]
+    (io-thread virtual? running? node-id "stdin"
+               [^OutputStream out (open-out)]
+               [_ true]
+               (do (when-let [msg (net/recv! net node-id 1000)]
+                     (.reset buf)
+                     (let [deadline (+ (System/currentTimeMillis)
+                                       (long max-batch-latency))
+                           ; Nothing can follow an init in the same batch,
+                           ; since we don't know how to encode it yet.
+                           last-msg (loop [msg msg
+                                           n   1]
+                                      (encode! msg)
+                                      (if (or (and framing (init? msg))
+                                              (<= (long stdin-batch-size) n))
+                                        msg
+                                        (if-let [more (net/recv!
+                                                        net node-id
+                                                        (max 0 (- deadline
+                                                                  (System/currentTimeMillis))))]
+                                          (recur more (inc n))
+                                          msg)))]
+                       (.flush w)
+                       (.writeTo buf out)
+                       (.flush out)
+                       (when (and framing (init? last-msg))
+                         (loop []
+                           (when @running?
+                             (let [chosen (deref framing 1000 ::pending)]
+                               (if (= ::pending chosen)
+                                 (recur)
+                                 (vreset! factory (framings chosen)))))))))
+                   ; We always recur; our input is unbounded.
+                   true))))
+
+(defn unix-server
+  "Opens a server socket channel on a new Unix domain socket at the given
+  path. These need Java 16 or higher, so we look them up by reflection, and
+  Maelstrom still loads on older JVMs."
+  ^ServerSocketChannel [^String path]
+  (let [family (try (Enum/valueOf StandardProtocolFamily "UNIX")
+                    (catch IllegalArgumentException e
+                      (throw+ {:type :unsupported-transport
+                               :transport :socket}
+                              e
+                              "The socket transport requires Java 16 or higher.")))
+        addr   (Reflector/invokeStaticMethod "java.net.UnixDomainSocketAddress"
+                                             "of"
+                                             (object-array [path]))
+        ^ServerSocketChannel server (Reflector/invokeStaticMethod
+                                      ServerSocketChannel
+                                      "open"
+                                      (object-array [family]))]
+    (.bind server ^SocketAddress addr)))
+
+(defn channel-input-stream
+  "An InputStream which reads from a socket channel. We don't use
+  Channels/newInputStream: it locks the channel for the duration of each
+  read, which would keep the stdin thread from writing while the stdout thread
+  waits for the node."
+  ^InputStream [^SocketChannel ch]
+  (proxy [InputStream] []
+    (read
+      ([]
+       (let [b (byte-array 1)]
+         (if (neg? (.read ch (ByteBuffer/wrap b)))
+           -1
+           (bit-and 0xff (aget b 0)))))
+      ([^bytes b]
+       (.read ch (ByteBuffer/wrap b)))
+      ([^bytes b off len]
+       (.read ch (ByteBuffer/wrap b (int off) (int len)))))))
+
+(defn channel-output-stream
+  "An OutputStream which writes to a socket channel. See
+  channel-input-stream."
+  ^OutputStream [^SocketChannel ch]
+  (let [write! (fn [^ByteBuffer bb]
+                 (while (.hasRemaining bb)
+                   (.write ch bb)))]
+    (proxy [OutputStream] []
+      (write
+        ([x]
+         (if (bytes? x)
+           (write! (ByteBuffer/wrap ^bytes x))
+           (write! (ByteBuffer/wrap (byte-array [(unchecked-byte x)])))))
+        ([^bytes b off len]
+         (write! (ByteBuffer/wrap b (int off) (int len))))))))
+
+(defn socket-transport
+  "Opens a Unix domain socket in dir for a node to connect to. Returns a map
+  of:
+
+      :path     The socket's path, which we give the node
+      :server   The ServerSocketChannel
+      :conn     A delay of the node's connection, a SocketChannel. Derefing
+                blocks until the node connects."
+  [dir node-id]
+  (let [f      (io/file dir (str "maelstrom-" node-id "-" (System/nanoTime)
+                                 ".sock"))
+        _      (.delete f)
+        path   (.getCanonicalPath f)
+        server (unix-server path)]
+    {:path   path
+     :server server
+     :conn   (delay (.accept server))}))
+
+(defn close-socket-transport!
+  "Closes a socket transport's channels, and removes its socket file."
+  [{:keys [path ^ServerSocketChannel server conn]}]
+  ; Wakes up anyone still waiting on the node to connect
+  (.close server)
+  (when (realized? conn)
+    (try (.close ^SocketChannel @conn)
+         (catch Exception e nil)))
+  (.delete (io/file path)))
 
 (defn start-node!
   "Starts a node. Options:
@@ -175,6 +565,18 @@
       :log-file     A string file to receive stderr output
       :net          A network.
       :log-stderr?  Whether to log stderr output from processes to our logger
+      :stdin-batch-latency  How long, in ms, to wait for more messages before
+                    writing a batch to the process's stdin. Default 0.
+      :virtual-threads?  Whether to do this node's IO on virtual threads; see
+                    maelstrom.thread.
+      :offer-framing?  Whether we offer the node framings in its init
+                    message. See stdout-thread.
+      :transport    How the node exchanges messages with us: :pipe (the
+                    default) for its stdin and stdout, or :socket for a Unix
+                    domain socket, whose path we pass to the node in the
+                    MAELSTROM_SOCKET environment variable. The node connects
+                    to it once, and reads and writes messages over that
+                    connection exactly as it would over stdin and stdout.
 
   Returns:
 
@@ -183,6 +585,7 @@
    :stdin-thread    The future used for writing to the process' stdin
    :stdout-thread   The future used for stdout messages
    :stderr-thread   The future used for stderr messages
+   :socket          For the socket transport, a map from socket-transport
   "
   [opts]
   (info "launching" (:bin opts) (pr-str (:args opts)))
@@ -192,12 +595,30 @@
         _       (io/make-parents (:log-file opts))
         log     (io/writer (:log-file opts))
         bin     (.getCanonicalPath (io/file (:bin opts)))
-        process (-> (ProcessBuilder. ^java.util.List (cons bin (:args opts)))
+        socket  (when (= :socket (:transport opts))
+                  (socket-transport (:dir opts) node-id))
+        builder (-> (ProcessBuilder. ^java.util.List (cons bin (:args opts)))
                     (.directory (io/file (:dir opts)))
-                    (.redirectOutput ProcessBuilder$Redirect/PIPE)
-                    (.redirectInput  ProcessBuilder$Redirect/PIPE)
-                    (.start))
+                    ; With a socket, nothing reads the node's stdout; don't
+                    ; let it fill up the pipe.
+                    (.redirectOutput (if socket
+                                       ProcessBuilder$Redirect/DISCARD
+                                       ProcessBuilder$Redirect/PIPE))
+                    (.redirectInput  ProcessBuilder$Redirect/PIPE))
+        _       (when socket
+                  (.put (.environment builder) "MAELSTROM_SOCKET"
+                        (:path socket)))
+        process (.start builder)
+        open-in  (if socket
+                   #(BufferedInputStream.
+                      (channel-input-stream @(:conn socket)) 65536)
+                   #(.getInputStream process))
+        open-out (if socket
+                   #(channel-output-stream @(:conn socket))
+                   #(.getOutputStream process))
         running? (atom true)
+        virtual? (:virtual-threads? opts)
+        framing  (when (:offer-framing? opts) (promise))
         stdout-debug-buffer (atom (ring-buffer/ring-buffer debug-buffer-size))
         stderr-debug-buffer (atom (ring-buffer/ring-buffer debug-buffer-size))]
     {:process       process
@@ -206,19 +627,22 @@
      :net           net
      :log           log
      :log-file      (:log-file opts)
+     :socket        socket
      :stderr-debug-buffer stderr-debug-buffer
      :stdout-debug-buffer stdout-debug-buffer
-     :stdin-thread  (stdin-thread  process running? node-id net)
-     :stderr-thread (stderr-thread process running? node-id stderr-debug-buffer
-                                   log (:log-stderr? opts))
-     :stdout-thread (stdout-thread process running? node-id stdout-debug-buffer
-                                   net)}))
+     :stdin-thread  (stdin-thread  virtual? open-out running? node-id net
+                                   (or (:stdin-batch-latency opts) 0)
+                                   framing)
+     :stderr-thread (stderr-thread virtual? process running? node-id
+                                   stderr-debug-buffer log (:log-stderr? opts))
+     :stdout-thread (stdout-thread virtual? open-in running? node-id
+                                   stdout-debug-buffer net framing)}))
 
 (defn stop-node!
   "Kills a node. Throws if the node already exited."
   [{:keys [^Process process running? node-id net log-file ^Writer log
            stdin-thread stderr-thread stdout-thread stderr-debug-buffer
-           stdout-debug-buffer]}]
+           stdout-debug-buffer socket]}]
   (let [crashed? (not (.isAlive process))]
     (when-not crashed?
       ; Kill
@@ -226,6 +650,8 @@
 
     ; Shut down workers
     (reset! running? false)
+    (when socket
+      (close-socket-transport! socket))
     (mapv deref [stdin-thread stderr-thread stdout-thread])
 
     ; Remove self from network
@@ -243,7 +669,10 @@
               (str "Node " node-id " crashed with exit status "
                    (.exitValue process)
                    ". Before crashing, it wrote to STDOUT:\n\n"
-                   (->> @stdout-debug-buffer (str/join "\n"))
+                   (->> @stdout-debug-buffer
+                        (map (comp json/generate-string
+                                   (partial net/external net)))
+                        (str/join "\n"))
                    "\n\nAnd to STDERR:\n\n"
                    (->> @stderr-debug-buffer (str/join "\n"))
                    "\n\n"
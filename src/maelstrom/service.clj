@@ -13,8 +13,10 @@
   requests to the `lin-kv` service."
   (:require [amalloy.ring-buffer :as ring-buffer]
             [clojure.tools.logging :refer [info warn]]
-            [maelstrom [net :as net]]
-            [jepsen [util :as util]]))
+            [maelstrom [net :as net]
+                       [thread :as thread]
+                       [util :as u]])
+  (:import (java.util SplittableRandom)))
 
 (defprotocol PersistentService
   (handle [this message]
@@ -154,11 +156,22 @@
   [persistent-service]
   (Linearizable. (atom persistent-service)))
 
+(defn rand-index
+  "Picks a random integer in [0, n), using a SplittableRandom. Returns 0 when
+  n is 0, like rand-int."
+  [^SplittableRandom rng n]
+  (if (pos? n)
+    (.nextInt rng (int n))
+    0))
+
 ; State is an atom containing:
 ;   :clients     a map of clients-node-id -> last-observed-state-index
 ;   :last-index  the index of the most recently added element in the buffer
 ;   :buffer      a ring buffer of service states
-(defrecord Sequential [state]
+;
+; rng is a SplittableRandom. Only the service's own thread calls handle!, so
+; it's never contended. start-services! replaces it with a seeded stream.
+(defrecord Sequential [state rng]
   MutableService
   (handle! [this message]
     (let [client   (:src message)
@@ -167,10 +180,9 @@
              (fn [{:keys [clients last-index buffer] :as state}]
                (let [client-index (get clients client 0)
                      ; Pick some index to interact with
-                     index        (-> last-index
-                                      (- client-index)
-                                      rand-int
-                                      (+ client-index))
+                     index        (->> (- last-index client-index)
+                                           (rand-index rng)
+                                           (+ client-index))
                      _ (assert (<= client-index index last-index))
                      ; We compute a negative offset into the buffer: -1 is
                      ; last-index, -2 is the previous, and so on:
@@ -206,11 +218,13 @@
    (Sequential. (atom {:buffer     (conj (ring-buffer/ring-buffer buffer-size)
                                          persistent-service)
                        :last-index 0
-                       :clients    {}}))))
+                       :clients    {}})
+                (SplittableRandom.))))
 
 ; Replicas is an atom to a vector of states, simulating several independent
-; replicas. States are updated and merged at random.
-(defrecord Eventual [replicas]
+; replicas. States are updated and merged at random, using rng, a
+; SplittableRandom.
+(defrecord Eventual [replicas rng]
   MutableService
   (handle! [this message]
     (let [response (atom nil)]
@@ -218,14 +232,14 @@
              (fn [replicas]
                ; Merge one random replica into another
                (let [n            (count replicas)
-                     merge-source (rand-int n)
-                     merge-dest   (rand-int n)
+                     merge-source (rand-index rng n)
+                     merge-dest   (rand-index rng n)
                      merged       (merge-services (nth replicas merge-source)
                                                   (nth replicas merge-dest))
                      replicas'    (assoc replicas merge-dest merged)
 
                      ; Apply message to yet another random replica
-                     i              (rand-int n)
+                     i              (rand-index rng n)
                      [replica' res] (handle (nth replicas i) message)
                      replicas'      (assoc replicas i replica')]
                  (reset! response res)
@@ -239,14 +253,18 @@
   ([persistent-service]
    (eventual 2 persistent-service))
   ([n persistent-service]
-   (Eventual. (atom (vec (repeat n persistent-service))))))
+   (Eventual. (atom (vec (repeat n persistent-service)))
+              (SplittableRandom.))))
 
 (defn service-thread
-  "Spawns a thread which handles service requests from the network. Takes a
-  network, a running atom, a node ID, and a MutableService."
-  [net node-id service running?]
-  (future
-    (util/with-thread-name (str "maelstrom " node-id)
+  "Spawns a thread which handles service requests from the network. Takes
+  whether to use a virtual thread (see maelstrom.thread/spawn), a network, a
+  running atom, a node ID, and a MutableService."
+  [virtual? net node-id service running?]
+  (thread/spawn
+    virtual?
+    (str "maelstrom " node-id)
+    (fn []
       (while @running?
         (try
           (when-let [message (net/recv! net node-id 1000)]
@@ -261,21 +279,43 @@
           (catch Exception e
             (warn e "Error in service worker!")))))))
 
+(defn seed-service
+  "Services which make random choices have an :rng. Takes a seed and a node
+  id, and gives a service a random stream derived from them, so seeded runs
+  make the same choices. The network already draws latencies for the node id
+  itself, so we name the service's stream differently, keeping the two
+  independent."
+  [seed node-id service]
+  (if (contains? service :rng)
+    (assoc service :rng (u/rng seed [:service node-id]))
+    service))
+
 (defn start-services!
   "Takes a network and a map of node ids to MutableServices. Spawns threads
   for each mutable service, and constructs a map used to shut down these
-  services later."
-  [net services]
-  (info "Starting services:" (sort (keys services)))
-  (let [running? (atom true)
-        workers (mapv (fn [[node-id service]]
-                        (net/add-node! net node-id)
-                        (service-thread net node-id service running?))
-                      services)]
-    {:net      net
-     :running? running?
-     :services services
-     :workers  workers}))
+  services later. Options:
+
+    :virtual-threads?  Whether to run services on virtual threads; see
+                       maelstrom.thread."
+  ([net services]
+   (start-services! net services {}))
+  ([net services opts]
+   (info "Starting services:" (sort (keys services)))
+   (let [running? (atom true)
+         services (->> services
+                       (map (fn [[node-id service]]
+                              [node-id (seed-service (:seed net) node-id
+                                                     service)]))
+                       (into {}))
+         workers (mapv (fn [[node-id service]]
+                         (net/add-node! net node-id :service)
+                         (service-thread (:virtual-threads? opts)
+                                         net node-id service running?))
+                       services)]
+     {:net      net
+      :running? running?
+      :services services
+      :workers  workers})))
 
 (defn stop-services!
   "Shuts down all services started via start-services!"
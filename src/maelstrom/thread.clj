@@ -0,0 +1,45 @@
+(ns maelstrom.thread
+  "Spawns Maelstrom's long-lived worker threads: three per node, for its
+  stdin, stdout, and stderr, and one per service. These spend nearly all of
+  their time blocked on pipes and queues, so on JVMs with virtual threads
+  (Java 21 and up) we can run them as virtual threads instead, and simulate
+  hundreds of nodes without hundreds of platform threads.
+
+  We look virtual threads up by reflection, so Maelstrom still builds and
+  runs on older JVMs; there, we fall back to platform threads."
+  (:require [clojure.tools.logging :refer [info warn]]
+            [jepsen.util :refer [with-thread-name]])
+  (:import (java.util.concurrent Callable
+                                 ExecutorService
+                                 Executors)))
+
+(def virtual-executor
+  "A delay of an ExecutorService which runs each task on a new virtual
+  thread, or of nil if this JVM can't."
+  (delay
+    (try
+      (let [e (.invoke (.getMethod Executors
+                                   "newVirtualThreadPerTaskExecutor"
+                                   (make-array Class 0))
+                       nil
+                       (object-array 0))]
+        (info "Running node and service IO on virtual threads")
+        e)
+      (catch Exception e
+        ; No such method before Java 19, and a preview feature until 21
+        (warn "This JVM doesn't support virtual threads; using platform"
+              "threads instead. Java 21 or higher is required.")
+        nil))))
+
+(defn spawn
+  "Calls (f) on a new thread with the given name, conveying dynamic bindings
+  like clojure.core/future, and returns a future of its result. If virtual?
+  is true, and the JVM supports it, this is a virtual thread; otherwise, a
+  platform thread."
+  [virtual? thread-name f]
+  (let [f (bound-fn* (fn task []
+                       (with-thread-name thread-name
+                         (f))))]
+    (if-let [^ExecutorService e (and virtual? @virtual-executor)]
+      (.submit e ^Callable f)
+      (future-call f))))
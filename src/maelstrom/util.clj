@@ -2,18 +2,26 @@
   "Kitchen sink"
   (:require [schema.core :as s]
             [clojure.string :as str]
-            [slingshot.slingshot :refer [try+ throw+]]))
+            [slingshot.slingshot :refer [try+ throw+]])
+  (:import (java.util SplittableRandom)))
 
 (defn client?
   "Is a given node id a client?"
   [^String node-id]
   (= \c (.charAt node-id 0)))
 
-(defn involves-client?
-  "Does a given network message involve a client?"
-  [message]
-  (or (client? (:src message))
-      (client? (:dest message))))
+(defn ^SplittableRandom rng
+  "Constructs a random stream for some named purpose--say, a node id--derived
+  from a seed. The same seed and name always yield the same stream, no matter
+  which threads ask for streams, or in what order, which is what makes seeded
+  runs repeatable."
+  [seed stream-name]
+  (SplittableRandom.
+    (unchecked-add (long seed)
+                   ; The golden ratio, 0x9E3779B97F4A7C15, as in
+                   ; SplittableRandom itself.
+                   (unchecked-multiply -7046029254386353131
+                                       (long (hash stream-name))))))
 
 (defn sort-clients
   "Sorts a collection by client ID. We split up the letter and number parts, to
@@ -0,0 +1,134 @@
+(ns maelstrom.net.blocks-test
+  (:require [clojure.test :refer :all]
+            [maelstrom.net [blocks :as blocks]
+                           [fixtures :refer [temp-dir test-map
+                                             with-temp-store]]
+                           [journal :as j]
+                           [message :as msg]
+                           [node :as node]]
+            [tesser.core :as t])
+  (:import (java.io RandomAccessFile)
+           (java.util Random)))
+
+(defn random-bytes
+  "n random bytes."
+  ^bytes [n]
+  (let [b (byte-array n)]
+    (.nextBytes (Random. n) b)
+    b))
+
+(deftest round-trip-test
+  (doseq [codec (keys blocks/codecs)]
+    (testing (name codec)
+      (let [dir  (temp-dir)
+            ; Random bytes don't compress; runs of one byte do. The journal
+            ; only fills part of its buffer, so we do too.
+            raws [[(random-bytes 1000) 1000]
+                  [(byte-array 100000 (byte 7)) 100000]
+                  [(random-bytes 500) 250]
+                  [(byte-array 0) 0]]
+            w    (blocks/writer dir 3 codec)]
+        (doseq [[i [raw length]] (map-indexed vector raws)]
+          (blocks/write-block! w raw length (inc i)
+                               (* 10 i) (+ (* 10 i) i)
+                               (* 100 i) (+ (* 100 i) 50)))
+        (blocks/close-writer! w)
+
+        (is (= [3] (blocks/stripes dir)))
+        (let [index  (blocks/read-index dir 3)
+              blocks (:blocks index)]
+          (is (= codec (:codec index)))
+          (is (= [1 2 3 4] (map :event-count blocks)))
+          (is (= [0 10 20 30] (map :min-id blocks)))
+          (is (= [0 11 22 33] (map :max-id blocks)))
+          (is (= [50 150 250 350] (map :max-time blocks)))
+          (is (= (map second raws) (map :raw-length blocks)))
+          (when (= :deflate codec)
+            (is (< (:length (second blocks)) (:raw-length (second blocks)))))
+          (with-open [data (RandomAccessFile. (blocks/data-file dir 3) "r")]
+            (is (= (map (fn [[raw length]] (vec (take length raw))) raws)
+                   (map (fn [block]
+                          (vec (blocks/read-block data codec block)))
+                        blocks)))))))))
+
+;; Whole journals
+
+(use-fixtures :each with-temp-store)
+
+(defn write-journal!
+  "Journals message-count messages from c1 to n1, each sent then received,
+  and closes the journal."
+  [test message-count]
+  (let [nodes   (node/registry)
+        n1      (node/intern! nodes "n1")
+        c1      (node/intern! nodes "c1")
+        journal (j/journal test nodes)]
+    (dotimes [i message-count]
+      (let [m (msg/message i c1 n1 {:type "echo", :msg_id i})]
+        (j/log-send! journal m)
+        (j/log-recv! journal m)))
+    (j/close! journal)))
+
+(deftest journal-round-trip-test
+  (doseq [codec (keys blocks/codecs)]
+    (testing (name codec)
+      (let [test (test-map {:journal-compression codec})
+            n    5000]
+        (write-journal! test n)
+
+        (testing "index"
+          (let [index (j/journal-index test)]
+            (is (< 1 (count index)))
+            (is (= (* 2 n) (reduce + (map :event-count index))))
+            (is (every? (comp #{codec} :codec) index))))
+
+        (testing "ordered events"
+          (let [events (j/ordered-events test)]
+            (is (= (range (* 2 n)) (map :id events)))
+            (is (= (take (* 2 n) (cycle [:send :recv])) (map :type events)))
+            (is (= (mapcat (fn [i] [i i]) (range n))
+                   (map (comp :msg_id :body :message) events)))))
+
+        (testing "events-before"
+          (is (= (range 1234) (map :id (j/events-before test 1234)))))
+
+        (testing "before-id skips blocks"
+          (let [ids (j/tesser-journal test {:before-id 100}
+                                      (->> (t/map :id) (t/into [])))]
+            (is (= (range j/block-size) (sort ids)))))
+
+        (testing "without bodies"
+          (is (every? nil? (j/tesser-journal
+                             test {:bodies? false}
+                             (->> (t/map (comp :body :message))
+                                  (t/into []))))))))))
+
+(deftest bodies-test
+  ; Receives arrive long after their sends, in reverse order, so some
+  ; messages' events share a block, and others span blocks.
+  (let [test  (test-map {:journal-compression :deflate})
+        n     3000
+        nodes (node/registry)
+        n1    (node/intern! nodes "n1")
+        c1    (node/intern! nodes "c1")
+        body  (fn [i] {:type "echo", :msg_id i, :echo (str "x" (mod i 7))})
+        ms    (mapv (fn [i] (msg/message i c1 n1 (body i))) (range n))
+        j     (j/journal test nodes)]
+    (doseq [m ms] (j/log-send! j m))
+    (doseq [m (rseq ms)] (j/log-recv! j m))
+    (j/close! j)
+
+    (let [events (j/ordered-events test)]
+      (is (= (concat (range n) (reverse (range n)))
+             (map (comp :id :message) events)))
+      (is (= (concat (map body (range n)) (map body (reverse (range n))))
+             (map (comp :body :message) events)))
+
+      (testing "events in a block share their message's body"
+        (let [by-id (group-by (comp :id :message) (take j/block-size events))
+              pairs (filter #(= 2 (count %)) (vals by-id))]
+          (is (seq pairs))
+          (is (every? (fn [[a b]]
+                        (identical? (:body (:message a))
+                                    (:body (:message b))))
+                      pairs)))))))
@@ -0,0 +1,152 @@
+(ns maelstrom.net.columns-test
+  (:require [clojure.test :refer :all]
+            [maelstrom.net [checker :as checker]
+                           [columns :as columns]
+                           [fixtures :refer [temp-dir]]
+                           [journal :as j]
+                           [node :as node]]
+            [tesser.core :as t])
+  (:import (java.io ByteArrayOutputStream
+                    File
+                    RandomAccessFile)))
+
+(def nodes (node/registry))
+(def n1 (node/intern! nodes "n1"))
+(def n2 (node/intern! nodes "n2"))
+(def c1 (node/intern! nodes "c1"))
+
+(defn rows
+  "Events for message-count messages: each is sent, then either received or
+  dropped. Messages alternate between n1 -> n2 and c1 -> n1. Returns [time
+  type src dest msg-id body] rows."
+  [message-count]
+  (for [i     (range message-count)
+        :let  [[src dest] (if (even? i) [n1 n2] [c1 n1])
+               body       {:type "echo", :msg_id i, :echo (str "x" i)}]
+        type  [:send (if (zero? (mod i 5)) :drop :recv)]]
+    [(+ 1000 (* 2 i) (if (= :send type) 0 1)) type src dest i body]))
+
+(defn write-rows!
+  "Writes rows to a new set of columns in dir, the way the journal's
+  ColumnarSink does."
+  [dir rows]
+  (let [w   (columns/writer dir)
+        buf (ByteArrayOutputStream.)]
+    (doseq [[time type src dest msg-id body] rows]
+      (columns/append! w time type src dest msg-id
+                       (let [offset (columns/body-offset w msg-id)]
+                         (if (neg? offset)
+                           (columns/append-body! w msg-id
+                                                 (j/encode-body! buf body))
+                           offset))))
+    (columns/close-writer! w)))
+
+(defn read-rows
+  "Reads every row back from columns."
+  [c]
+  (for [i (range (:n c))]
+    [(columns/time-at c i)
+     (columns/code-types (columns/type-at c i))
+     (columns/src-at c i)
+     (columns/dest-at c i)
+     (columns/msg-id-at c i)
+     (j/decode-body (columns/body-bytes c i))]))
+
+(deftest round-trip-test
+  (let [dir  (temp-dir)
+        rows (rows 100)]
+    (write-rows! dir rows)
+    (let [c (columns/open dir)]
+      (is (= 200 (:n c)))
+      (is (= rows (read-rows c))))))
+
+(deftest empty-test
+  (let [dir (temp-dir)]
+    (is (nil? (columns/open dir)))
+    (write-rows! dir [])
+    (is (= 0 (:n (columns/open dir))))))
+
+(deftest body-once-per-message-test
+  (let [dir  (temp-dir)
+        buf  (ByteArrayOutputStream.)
+        rows (rows 100)]
+    (write-rows! dir rows)
+    (is (= (->> rows
+                (map (fn [[_ _ _ _ msg-id body]] [msg-id body]))
+                distinct
+                (map (fn [[_ body]] (+ 4 (.size (j/encode-body! buf body)))))
+                (reduce +))
+           (.length (columns/column-file dir :body-heap))))))
+
+(deftest segments-test
+  ; With tiny segments, fixed-width values sit at segment boundaries, and
+  ; bodies straddle them.
+  (with-redefs [columns/segment-size 8]
+    (let [dir  (temp-dir)
+          rows (rows 20)]
+      (write-rows! dir rows)
+      (let [c (columns/open dir)]
+        (is (< 1 (alength ^objects (.segments ^maelstrom.net.columns.Mapped
+                                              (:body-heap c)))))
+        (is (= rows (read-rows c)))))))
+
+(defn truncate!
+  "Cuts a file down to length bytes."
+  [file length]
+  (with-open [f (RandomAccessFile. ^File file "rw")]
+    (.setLength f (long length))))
+
+(deftest unclean-close-test
+  ; Columns are flushed separately, so a crash can leave them with different
+  ; lengths, and the body heap partway through a body.
+  (let [dir  (temp-dir)
+        rows (rows 100)
+        heap (columns/column-file dir :body-heap)]
+    (write-rows! dir rows)
+    ; Row 186 is message 93's send, which wrote its body.
+    (let [offset (columns/get-long (:body-offset (columns/open dir))
+                                   (* 8 186))]
+      (truncate! (columns/column-file dir :src) (* 4 190))
+      (truncate! (columns/column-file dir :time) (+ 3 (* 8 195)))
+      (truncate! heap (+ offset 5)))
+    (let [c (columns/open dir)
+          n (:n c)]
+      ; Message 93's body is cut short, so we lose its rows, and every row
+      ; after them.
+      (is (= 186 n))
+      (is (= (take n rows) (read-rows c)))
+      (is (= (t/tesser (j/column-chunks c {:bodies? false}) checker/stats)
+             (columns/stats c))))
+
+    (testing "nothing left"
+      (truncate! heap 2)
+      (is (= 0 (:n (columns/open dir)))))))
+
+(deftest column-chunks-test
+  (let [dir  (temp-dir)
+        rows (rows 100)]
+    (write-rows! dir rows)
+    (let [c   (columns/open dir)
+          ids (fn [opts]
+                (->> (j/column-chunks c opts)
+                     (mapcat (partial into []))
+                     (map :id)))]
+      (testing "every row, in order"
+        (is (= (range 200) (ids {}))))
+
+      (testing "before-id skips exactly"
+        (is (= (range 37) (ids {:before-id 37})))
+        (is (= [] (ids {:before-id 0}))))
+
+      (testing "without bodies"
+        (is (every? nil? (->> (j/column-chunks c {:bodies? false})
+                              (mapcat (partial into []))
+                              (map (comp :body :message)))))))))
+
+(deftest stats-test
+  ; The columnar scan should agree with the fold we run over other journals
+  (let [dir (temp-dir)]
+    (write-rows! dir (rows 100))
+    (let [c (columns/open dir)]
+      (is (= (t/tesser (j/column-chunks c {:bodies? false}) checker/stats)
+             (columns/stats c))))))
@@ -0,0 +1,30 @@
+(ns maelstrom.net.fixtures
+  "Helpers shared by tests which write journals: temporary directories, and a
+  store which puts each test's journal in one."
+  (:require [clojure.java.io :as io]
+            [jepsen.store :as store])
+  (:import (java.nio.file Files)
+           (java.nio.file.attribute FileAttribute)))
+
+(defn temp-dir
+  "A fresh temporary directory."
+  []
+  (.toFile (Files/createTempDirectory "maelstrom-journal"
+                                      (make-array FileAttribute 0))))
+
+(defn test-map
+  "A test map for a journal in a temporary directory."
+  [opts]
+  (assoc opts ::dir (temp-dir)))
+
+(defn with-temp-store
+  "A fixture which points the store at each test map's temporary directory;
+  see test-map."
+  [f]
+  (with-redefs [store/path  (fn [test & args]
+                              (apply io/file (::dir test) args))
+                store/path! (fn [test & args]
+                              (let [file (apply io/file (::dir test) args)]
+                                (io/make-parents file)
+                                file))]
+    (f)))
@@ -0,0 +1,215 @@
+(ns maelstrom.net.journal-test
+  (:require [clojure.test :refer :all]
+            [maelstrom.net [checker :as checker]
+                           [fixtures :refer [test-map with-temp-store]]
+                           [journal :as j]
+                           [message :as msg]
+                           [node :as node]]))
+
+(use-fixtures :each with-temp-store)
+
+(def formats
+  "Test options for each journal format."
+  {:fressian {:journal-format :fressian}
+   :columnar {:journal-format :columnar}})
+
+(defn log-messages!
+  "Logs message-count messages to a journal. The first half go between c1
+  and n1, and the second between n1 and n2, so n2 only turns up in later
+  blocks. Each is sent, then received, except every fifth, which a partition
+  drops."
+  [journal nodes message-count]
+  (let [n1 (node/intern! nodes "n1")
+        n2 (node/intern! nodes "n2")
+        c1 (node/intern! nodes "c1")]
+    (dotimes [i message-count]
+      (let [m (if (< i (quot message-count 2))
+                (msg/message i c1 n1 {:type "echo", :msg_id i})
+                (msg/message i n1 n2 {:type "gossip", :msg_id i}))]
+        (j/log-send! journal m)
+        (if (zero? (mod i 5))
+          (j/log-drop! journal m)
+          (j/log-recv! journal m))))))
+
+(defn write-journal!
+  "Journals message-count messages with log-messages!, and closes the
+  journal. Returns the node registry."
+  [test message-count]
+  (let [nodes   (node/registry)
+        journal (j/journal test nodes)]
+    (log-messages! journal nodes message-count)
+    (j/close! journal)
+    nodes))
+
+(defn involves?
+  "Does an event's message involve node number n?"
+  [n e]
+  (let [m (:message e)]
+    (or (= n (:src m)) (= n (:dest m)))))
+
+(deftest windowed-queries-test
+  (doseq [[format opts] formats]
+    (testing (name format)
+      (let [test   (test-map opts)
+            nodes  (write-journal! test 5000)
+            n2     (node/number nodes "n2")
+            events (vec (j/ordered-events test))]
+        (is (= (range 10000) (map :id events)))
+
+        (testing "events-before"
+          (is (= (take 1234 events) (j/events-before test 1234)))
+          (is (= [] (j/events-before test 0)))
+          (is (= events (j/events-before test 1e6))))
+
+        (testing "events-between"
+          (let [t0 (:time (nth events 2000))
+                t1 (:time (nth events 7000))]
+            (is (= (filter #(and (<= t0 (:time %)) (< (:time %) t1)) events)
+                   (j/events-between test t0 t1)))
+            (is (= [] (j/events-between test t1 t1)))))
+
+        (testing "events-for-node"
+          (when (= :fressian format)
+            ; Otherwise we'd never skip a block
+            (is (some (fn [block] (not (contains? (:nodes block) n2)))
+                      (j/journal-index test))))
+          (let [expected (filter (partial involves? n2) events)]
+            (is (= 5000 (count expected)))
+            (is (= expected (j/events-for-node test "n2")))
+            (is (= expected (j/events-for-node test n2))))
+          (is (= [] (j/events-for-node test "n9"))))
+
+        (testing "select"
+          (is (= (filter (comp #{:drop} :type) events)
+                 (j/select test
+                           (constantly true)
+                           (fn [e] (= :drop (:type e)))))))))))
+
+(defn await-count
+  "Waits up to 10 seconds for a collection in an atom to have n elements."
+  [a n]
+  (loop [tries 1000]
+    (when (and (< (count @a) n) (pos? tries))
+      (Thread/sleep 10)
+      (recur (dec tries)))))
+
+(deftest subscribe-test
+  (testing "a subscriber sees every event, in order, with its id"
+    (let [test    (test-map {})
+          nodes   (node/registry)
+          journal (j/journal test nodes)
+          seen    (atom [])]
+      (j/subscribe! journal (partial swap! seen conj))
+      (log-messages! journal nodes 100)
+      (j/close! journal)
+      (is (= (j/ordered-events test) @seen))))
+
+  (testing "unsubscribing stops the stream"
+    (let [test    (test-map {})
+          nodes   (node/registry)
+          journal (j/journal test nodes)
+          seen    (atom [])
+          sub     (j/subscribe! journal (partial swap! seen conj))]
+      (log-messages! journal nodes 10)
+      (await-count seen 20)
+      (j/unsubscribe! journal sub)
+      (log-messages! journal nodes 10)
+      (j/close! journal)
+      (is (= (take 20 (j/ordered-events test)) @seen))))
+
+  (testing "subscribers see events the journal doesn't keep"
+    (let [test    (test-map {:journal-retention :counters-only})
+          nodes   (node/registry)
+          journal (j/journal test nodes)
+          seen    (atom [])]
+      (j/subscribe! journal (partial swap! seen conj))
+      (log-messages! journal nodes 100)
+      (j/close! journal)
+      (is (= [] (vec (j/ordered-events test))))
+      (is (= 200 (count @seen)))
+      (is (every? (comp #{-1} :id) @seen))
+      (is (= (range 100) (distinct (map (comp :id :message) @seen))))))
+
+  (testing "a slow subscriber drops events, rather than holding us up"
+    (let [test    (test-map {})
+          nodes   (node/registry)
+          journal (j/journal test nodes)
+          started (promise)
+          gate    (promise)
+          seen    (atom [])
+          sub     (j/subscribe! journal {:buffer 2}
+                                (fn [e]
+                                  (deliver started true)
+                                  @gate
+                                  (swap! seen conj e)))]
+      ; Get the subscriber stuck on its first event
+      (j/log-send! journal (msg/message 100
+                                        (node/intern! nodes "c1")
+                                        (node/intern! nodes "n1")
+                                        {:type "echo", :msg_id 100}))
+      (deref started 10000 nil)
+      ; The writer gets through every other event: two fit in the
+      ; subscriber's buffer, and the rest are dropped.
+      (log-messages! journal nodes 100)
+      (loop [tries 1000]
+        (when (and (< (j/subscriber-dropped sub) 198) (pos? tries))
+          (Thread/sleep 10)
+          (recur (dec tries))))
+      (is (= 198 (j/subscriber-dropped sub)))
+      (deliver gate true)
+      (j/close! journal)
+      (is (= 3 (count @seen)))
+      (is (= 201 (count (j/ordered-events test))))))
+
+  (testing "a subscriber which throws keeps receiving"
+    (let [test    (test-map {})
+          nodes   (node/registry)
+          journal (j/journal test nodes)
+          seen    (atom [])]
+      (j/subscribe! journal (fn [e]
+                              (swap! seen conj e)
+                              (throw (RuntimeException. "oops"))))
+      (log-messages! journal nodes 10)
+      (j/close! journal)
+      (is (= 20 (count @seen))))))
+
+(deftest retention-test
+  (let [full   (test-map {})
+        _      (write-journal! full 1000)
+        events (vec (j/ordered-events full))
+        stats  (j/tesser-journal full checker/stats)
+        write  (fn [opts]
+                 (let [test (test-map opts)]
+                   (write-journal! test 1000)
+                   [test (j/ordered-events test)]))
+        ; Strips ids and times, which differ between journals
+        routes (partial map (fn [e]
+                              [(:type e) (dissoc (into {} (:message e))
+                                                 :body)]))]
+    (is (= 2000 (count events)))
+    (is (seq (:partition-drops stats)))
+
+    (testing "full"
+      (is (= :full (:retention (j/journal-meta full))))
+      (is (= stats (:stats (j/journal-meta full))))
+      (is (= stats (checker/journal-stats full))))
+
+    (doseq [[opts keep?]
+            [[{:journal-retention :clients-only}
+              (fn [e] (msg/involves-client? (:message e)))]
+             [{:journal-retention :sampled, :journal-sample 10}
+              (fn [e] (or (msg/involves-client? (:message e))
+                          (zero? (mod (:id (:message e)) 10))))]
+             [{:journal-retention :counters-only}
+              (constantly false)]]]
+      (testing (name (:journal-retention opts))
+        (let [[test kept] (write opts)]
+          (testing "keeps the events it should, numbered densely"
+            (is (= (routes (filter keep? events)) (routes kept)))
+            (is (= (range (count kept)) (map :id kept))))
+
+          (testing "counts every event"
+            (is (= (:journal-retention opts)
+                   (:retention (j/journal-meta test))))
+            (is (= stats (:stats (j/journal-meta test))))
+            (is (= stats (checker/journal-stats test)))))))))
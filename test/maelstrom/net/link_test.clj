@@ -0,0 +1,107 @@
+(ns maelstrom.net.link-test
+  (:require [clojure.test :refer :all]
+            [maelstrom.net.link :as link])
+  (:import (java.util SplittableRandom)
+           (maelstrom.net.link Distribution
+                               Link)))
+
+(def default-latency
+  "The CLI's latency spec, for these tests."
+  {:mean 5, :dist :constant})
+
+(defn describe
+  "Summarizes a Link as [latency p-loss bandwidth]. Latencies are constant in
+  these tests, so any draw will do."
+  [^Link l]
+  [(.draw ^Distribution (.latency l) (SplittableRandom. 0))
+   (.p-loss l)
+   (.bandwidth l)])
+
+(deftest model-test
+  (let [model (link/model
+                {:regions {:east ["n1" "n2"]
+                           :west ["n3"]}
+                 :links   [{:from "*", :to "*", :latency {:mean 2}}
+                           {:from :east, :to :west
+                            :latency {:mean 80}
+                            :p-loss 0.1
+                            :symmetric? true}
+                           {:from "n1", :to "n3", :bandwidth 1000}
+                           {:from "n3", :to "n2", :latency {:mean 40}}]}
+                default-latency
+                500)]
+    (testing "a wildcard matches everyone"
+      (is (= [2.0 0.0 500] (describe (model "n1" "n2"))))
+      (is (= [2.0 0.0 500] (describe (model "n9" "n1")))))
+
+    (testing "region rules override earlier rules"
+      (is (= [80.0 0.1 500] (describe (model "n2" "n3")))))
+
+    (testing "symmetric rules apply in both directions"
+      (is (= [80.0 0.1 500] (describe (model "n3" "n1")))))
+
+    (testing "later rules only override what they specify"
+      (is (= [80.0 0.1 1000] (describe (model "n1" "n3"))))
+      (is (= [40.0 0.1 500] (describe (model "n3" "n2")))))
+
+    (testing "every pair gets its own link"
+      (is (not (identical? (model "n1" "n2") (model "n1" "n2")))))))
+
+(deftest model-default-test
+  (let [model (link/model {:links [{:from "n1", :to "n2", :p-loss 0.5}]}
+                          default-latency
+                          500)]
+    (testing "rules are directional"
+      (is (= [5.0 0.5 500] (describe (model "n1" "n2"))))
+      (is (= [5.0 0.0 500] (describe (model "n2" "n1")))))
+
+    (testing "unmatched pairs use the defaults"
+      (is (= [5.0 0.0 500] (describe (model nil nil)))))))
+
+(deftest model-dist-test
+  (let [model (link/model {:links [{:from "*", :to "*"
+                                    :latency {:mean 10
+                                              :dist "exponential"}}]}
+                          default-latency
+                          nil)]
+    (is (instance? maelstrom.net.link.ExponentialDistribution
+                   (.latency ^Link (model "n1" "n2"))))
+    (is (= 0 (.bandwidth ^Link (model "n1" "n2"))))))
+
+(deftest preset-test
+  (let [nodes ["n1" "n2" "n3" "n4" "n5"]]
+    (testing "spreads nodes round-robin"
+      (is (= {"region-0" ["n1" "n3" "n5"]
+              "region-1" ["n2" "n4"]}
+             (:regions (link/preset nodes "regions-2")))))
+
+    (testing "default latencies"
+      (let [model (link/model (link/preset nodes "regions-2")
+                              default-latency
+                              0)]
+        (is (= 2.0 (first (describe (model "n1" "n3")))))
+        (is (= 80.0 (first (describe (model "n1" "n2")))))))
+
+    (testing "explicit latencies"
+      (let [model (link/model (link/preset nodes "regions-2-5-100")
+                              default-latency
+                              0)]
+        (is (= 5.0 (first (describe (model "n2" "n4")))))
+        (is (= 100.0 (first (describe (model "n4" "n5")))))))
+
+    (testing "non-presets"
+      (is (nil? (link/preset nodes "regions-0")))
+      (is (nil? (link/preset nodes "regions-2-5")))
+      (is (nil? (link/preset nodes "topology.edn"))))))
+
+(deftest transmit-test
+  (testing "unlimited links transmit instantly"
+    (is (= 0 (link/transmit! (link/link (link/constant-dist 0) 0.0) 0 1000))))
+
+  (testing "limited links queue messages behind one another"
+    (let [l (link/link (link/constant-dist 0) 0.0 1000)]
+      ; 500 bytes at 1000 bytes/sec takes 500 ms
+      (is (= 500000000 (link/transmit! l 0 500)))
+      (is (= 1000000000 (link/transmit! l 0 500)))
+      ; An idle link starts over
+      (is (= 500000000 (link/transmit! l 5000000000 500))))))
@@ -0,0 +1,45 @@
+(ns maelstrom.net.merge-test
+  (:require [clojure.test :refer :all]
+            [maelstrom.net.merge :as merge])
+  (:import (java.util Random)))
+
+(deftest heap-test
+  (let [h (merge/heap 5)]
+    (doseq [[key source] [[5 0] [3 1] [9 2] [1 3] [4 4]]]
+      (merge/push! h key source))
+    (is (= 5 (merge/size h)))
+    (is (= [3 1 4 0 2] (repeatedly 5 #(merge/pop! h))))
+    (is (= 0 (merge/size h)))))
+
+(deftest merge-by-test
+  (testing "no sources"
+    (is (= [] (merge/merge-by identity []))))
+
+  (testing "empty sources"
+    (is (= [] (merge/merge-by identity [[] nil ()]))))
+
+  (testing "one source"
+    (is (= [1 2 3] (merge/merge-by identity [[1 2 3]]))))
+
+  (testing "interleaved, with empty sources mixed in"
+    (is (= (range 10)
+           (merge/merge-by identity [[0 3 6 9] [] [1 4 7] nil [2 5 8]]))))
+
+  (testing "equal keys"
+    (is (= [1 1 2 2 3] (merge/merge-by identity [[1 2 3] [1 2]]))))
+
+  (testing "by key"
+    (is (= [{:id 0} {:id 1} {:id 2} {:id 3}]
+           (merge/merge-by :id [[{:id 1} {:id 3}] [{:id 0} {:id 2}]]))))
+
+  (testing "random"
+    (let [rng     (Random. 0)
+          sources (vec (repeatedly 20 (fn []
+                                        (sort (repeatedly (.nextInt rng 50)
+                                                          #(.nextInt rng 1000))))))]
+      (is (= (sort (apply concat sources))
+             (merge/merge-by identity sources)))))
+
+  (testing "lazy"
+    (is (= [0 1 1 2 2 3]
+           (take 6 (merge/merge-by identity [(range) (iterate inc 1)]))))))
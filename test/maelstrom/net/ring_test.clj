@@ -0,0 +1,66 @@
+(ns maelstrom.net.ring-test
+  (:require [clojure.test :refer :all]
+            [maelstrom.net.ring :as ring]))
+
+(deftest capacity-test
+  (is (= 2 (ring/capacity (ring/ring 1))))
+  (is (= 8 (ring/capacity (ring/ring 8))))
+  (is (= 16 (ring/capacity (ring/ring 9)))))
+
+(deftest fill-test
+  (let [r (ring/ring 4)]
+    (testing "empty"
+      (is (nil? (ring/poll! r))))
+
+    (testing "fill"
+      (is (= [true true true true] (mapv (partial ring/offer! r) [1 2 3 4]))))
+
+    (testing "full"
+      (is (false? (ring/offer! r 5))))
+
+    (testing "drain in order"
+      (is (= [1 2 3 4] (repeatedly 4 #(ring/poll! r))))
+      (is (nil? (ring/poll! r))))
+
+    (testing "room again once drained"
+      (is (true? (ring/offer! r 6)))
+      (is (= 6 (ring/poll! r))))))
+
+(deftest wraparound-test
+  ; Many laps around a small ring, never quite full or empty
+  (let [r   (ring/ring 4)
+        out (volatile! [])]
+    (ring/offer! r -1)
+    (dotimes [i 1000]
+      (is (ring/offer! r i))
+      (vswap! out conj (ring/poll! r)))
+    (vswap! out conj (ring/poll! r))
+    (is (= (cons -1 (range 1000)) @out))
+    (is (nil? (ring/poll! r)))))
+
+(deftest concurrent-producers-test
+  (let [r         (ring/ring 64)
+        producers 4
+        n         100000
+        threads   (mapv (fn [p]
+                          (future
+                            (dotimes [i n]
+                              (while (not (ring/offer! r [p i]))
+                                (Thread/yield)))))
+                        (range producers))
+        received  (loop [received (transient [])]
+                    (if (= (count received) (* producers n))
+                      (persistent! received)
+                      (if-let [x (ring/poll! r)]
+                        (recur (conj! received x))
+                        (recur received))))]
+    (mapv deref threads)
+    (testing "nothing lost or duplicated"
+      (is (= (* producers n) (count received)))
+      (is (= (* producers n) (count (set received)))))
+
+    (testing "each producer's elements arrive in the order it offered them"
+      (doseq [[p xs] (group-by first received)]
+        (is (= (range n) (map second xs)))))
+
+    (is (nil? (ring/poll! r)))))
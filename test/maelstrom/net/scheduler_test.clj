@@ -0,0 +1,80 @@
+(ns maelstrom.net.scheduler-test
+  (:require [clojure.test :refer :all]
+            [maelstrom.net.scheduler :as sched])
+  (:import (java.util.concurrent LinkedBlockingQueue
+                                 TimeUnit)))
+
+(defn schedule-all!
+  "Schedules each [deadline message] pair on a scheduler. Delivery puts
+  [message clock] on the returned queue, where clock is the scheduler's
+  clock at the time."
+  [s pairs]
+  (let [q (LinkedBlockingQueue.)]
+    (doseq [[deadline message] pairs]
+      (sched/schedule! s deadline message
+                       (fn [m] (.put q [m (sched/now s)]))))
+    q))
+
+(defn take-n
+  "Takes n elements from a queue, waiting up to 10 seconds for each."
+  [^LinkedBlockingQueue q n]
+  (vec (repeatedly n #(.poll q 10 TimeUnit/SECONDS))))
+
+(deftest realtime-test
+  (let [s   (sched/realtime-scheduler)
+        now (sched/now s)
+        ms  1000000
+        q   (schedule-all! s [[(+ now (* 60 ms)) :c]
+                              [(+ now (* 20 ms)) :a]
+                              [(+ now (* 40 ms)) :b]])]
+    (sched/start! s (constantly true))
+    (try
+      (let [delivered (take-n q 3)]
+        (testing "delivers in deadline order"
+          (is (= [:a :b :c] (map first delivered))))
+        (testing "never delivers early"
+          (is (<= (+ now (* 60 ms)) (second (peek delivered))))))
+      (finally
+        (sched/stop! s)))))
+
+(deftest virtual-test
+  (testing "delivers in deadline order, skipping the clock ahead"
+    (let [s (sched/virtual-scheduler)
+          q (schedule-all! s [[3000000000 :c]
+                              [1000000000 :a]
+                              [2000000000 :b]
+                              [1000000000 :a']])]
+      (is (= 0 (sched/now s)))
+      (sched/start! s (constantly true))
+      (try
+        (let [delivered (take-n q 4)]
+          (is (= #{:a :a'} (set (map first (take 2 delivered)))))
+          (is (= [:b :c] (map first (drop 2 delivered))))
+          (is (= [1000000000 1000000000 2000000000 3000000000]
+                 (map second delivered))))
+        (finally
+          (sched/stop! s)))))
+
+  (testing "time stands still while anyone is busy"
+    (let [s     (sched/virtual-scheduler)
+          busy? (atom true)
+          q     (schedule-all! s [[1000000000 :a]])]
+      (sched/start! s #(not @busy?))
+      (try
+        (is (nil? (.poll q 50 TimeUnit/MILLISECONDS)))
+        (is (= 0 (sched/now s)))
+        (reset! busy? false)
+        (is (= [[:a 1000000000]] (take-n q 1)))
+        (finally
+          (sched/stop! s)))))
+
+  (testing "stopping discards messages in flight"
+    (let [s (sched/virtual-scheduler)
+          q (schedule-all! s [[1000000000 :a]])]
+      (sched/start! s (constantly false))
+      (sched/stop! s)
+      (sched/start! s (constantly true))
+      (try
+        (is (nil? (.poll q 50 TimeUnit/MILLISECONDS)))
+        (finally
+          (sched/stop! s))))))
@@ -0,0 +1,205 @@
+(ns maelstrom.net-test
+  (:require [clojure.test :refer :all]
+            [jepsen.net :as jnet]
+            [maelstrom.net :as net]
+            [maelstrom.net [fixtures :refer [test-map with-temp-store]]
+                           [journal :as j]
+                           [node :as node]
+                           [scheduler :as sched]]))
+
+(use-fixtures :each with-temp-store)
+
+(defn test-net
+  "Constructs a network with the given options, nodes n1, n2, and n3, and a
+  client c1, journaling to a temporary directory. Links have no latency
+  unless opts say otherwise. Returns [test net]."
+  [opts]
+  (let [test (test-map {})
+        net  (net/net (merge {:latency {:mean 0, :dist :constant}} opts))]
+    (doseq [node ["n1" "n2" "n3" "c1"]]
+      (net/add-node! net node))
+    (vreset! (:journal net) (j/journal test (:nodes net)))
+    [test net]))
+
+(defn close!
+  "Closes a test network's journal."
+  [net]
+  (j/close! @(:journal net)))
+
+(defn send!
+  "Sends a message from src to dest, with the given msg_id."
+  [net src dest msg-id]
+  (net/send! net {:src src, :dest dest, :body {:type "echo", :msg_id msg-id}}))
+
+(defn recv-all!
+  "Receives every message waiting for a node, and returns their msg_ids."
+  [net node]
+  (loop [ids []]
+    (if (.isEmpty (net/queue-for net node))
+      ids
+      (let [m (net/recv! net node 0)]
+        (recur (cond-> ids m (conj (:msg_id (:body m)))))))))
+
+(deftest partition-matrix-test
+  (let [empty (object-array 0)
+        p     (net/partition-add empty 3 5)]
+    (testing "copies rather than mutating"
+      (is (= 0 (alength empty)))
+      (is (not (net/partitioned? empty 3 5))))
+
+    (testing "is directional"
+      (is (net/partitioned? p 3 5))
+      (is (not (net/partitioned? p 5 3)))
+      (is (not (net/partitioned? p 4 5))))
+
+    (testing "handles receivers beyond the matrix"
+      (is (not (net/partitioned? p 3 64))))
+
+    (testing "applies grudges"
+      (let [p' (net/partition-grudge p {0 [1 2], 1 [0]})]
+        (is (every? (partial apply net/partitioned? p')
+                    [[1 0] [2 0] [0 1] [3 5]]))
+        (is (not-any? (partial apply net/partitioned? p')
+                      [[0 2] [2 1] [1 2]]))
+        (is (not (net/partitioned? p 1 0)))))))
+
+(deftest partition-test
+  (doseq [mode [:recv :send :in-flight]]
+    (testing (name mode)
+      (let [[test net] (test-net {:partition-mode mode})
+            jn         (net/jepsen-net net)]
+        (jnet/drop-all! jn test {"n1" ["n2" "n3"]})
+        (testing "a grudge drops messages from its sources"
+          (send! net "n2" "n1" 1)
+          (send! net "n3" "n1" 2)
+          (send! net "n1" "n2" 3)
+          (is (= [] (recv-all! net "n1")))
+          (is (= [3] (recv-all! net "n2"))))
+
+        (testing "drop! adds to the grudge"
+          (jnet/drop! jn test "n1" "n3")
+          (send! net "n1" "n3" 4)
+          (send! net "n2" "n3" 5)
+          (is (= [5] (recv-all! net "n3"))))
+
+        (testing "heal! lets everything through"
+          (jnet/heal! jn test)
+          (send! net "n2" "n1" 6)
+          (send! net "n1" "n3" 7)
+          (is (= [6] (recv-all! net "n1")))
+          (is (= [7] (recv-all! net "n3"))))
+
+        (testing "a partition which heals in flight"
+          (jnet/drop! jn test "n2" "n1")
+          (send! net "n2" "n1" 8)
+          (jnet/heal! jn test)
+          (is (= (if (= :recv mode) [8] [])
+                 (recv-all! net "n1"))))
+
+        (testing "a partition which begins in flight"
+          (send! net "n2" "n1" 9)
+          (jnet/drop! jn test "n2" "n1")
+          (is (= (if (= :send mode) [9] [])
+                 (recv-all! net "n1"))))
+
+        (close! net)
+        (testing "journals every drop"
+          (is (= (if (= :in-flight mode) 5 4)
+                 (count (filter (comp #{:drop} :type)
+                                (j/ordered-events test))))))))))
+
+(defn overflowed
+  "The msg_ids of every message a test's journal says overflowed."
+  [test]
+  (->> (j/ordered-events test)
+       (filter (comp #{:overflow} :type))
+       (map (comp :msg_id :body :message))))
+
+(deftest overflow-test
+  (testing "drop-tail"
+    (let [[test net] (test-net {:queue-capacity 2, :overflow :drop-tail})]
+      (doseq [i (range 4)] (send! net "n2" "n1" i))
+      (is (= [0 1] (recv-all! net "n1")))
+      (close! net)
+      (is (= [2 3] (overflowed test)))))
+
+  (testing "drop-head"
+    (let [[test net] (test-net {:queue-capacity 2, :overflow :drop-head})]
+      (doseq [i (range 4)] (send! net "n2" "n1" i))
+      (is (= [2 3] (recv-all! net "n1")))
+      (close! net)
+      (is (= [0 1] (overflowed test)))))
+
+  (testing "block"
+    (let [[test net] (test-net {:queue-capacity 2, :overflow :block})]
+      (send! net "n2" "n1" 0)
+      (send! net "n2" "n1" 1)
+      (let [blocked (future (send! net "n2" "n1" 2))]
+        (is (= ::timeout (deref blocked 200 ::timeout)))
+        (is (= 0 (:msg_id (:body (net/recv! net "n1" 0)))))
+        (is (= net (deref blocked 10000 ::timeout)))
+        (is (= [1 2] (recv-all! net "n1"))))
+
+      (testing "gives up when the recipient leaves"
+        (send! net "n2" "n3" 3)
+        (send! net "n2" "n3" 4)
+        (let [blocked (future (send! net "n2" "n3" 5))]
+          (is (= ::timeout (deref blocked 200 ::timeout)))
+          (net/remove-node! net "n3")
+          (is (= net (deref blocked 10000 ::timeout)))))
+      (close! net)
+      (is (= [5] (overflowed test)))))
+
+  (testing "unbounded"
+    (let [[test net] (test-net {})]
+      (doseq [i (range 100)] (send! net "n2" "n1" i))
+      (is (= (range 100) (recv-all! net "n1")))
+      (close! net)
+      (is (= [] (overflowed test))))))
+
+(deftest duplicate-test
+  (let [[_ net] (test-net {:seed 1})]
+    (net/duplicate! net 1.0 3)
+    (testing "servers get between 1 and 3 extra copies"
+      (doseq [i (range 50)] (send! net "n2" "n1" i))
+      (let [copies (frequencies (recv-all! net "n1"))]
+        (is (= (set (range 50)) (set (keys copies))))
+        (is (every? #{2 3 4} (vals copies)))
+        (is (< 1 (count (set (vals copies)))))))
+
+    (testing "clients get exactly one copy"
+      (doseq [i (range 50)] (send! net "c1" "n1" i))
+      (is (= (range 50) (recv-all! net "n1")))
+      (doseq [i (range 50)] (send! net "n1" "c1" i))
+      (is (= (range 50) (recv-all! net "c1"))))
+
+    (testing "stops"
+      (net/stop-duplicating! net)
+      (doseq [i (range 50)] (send! net "n2" "n1" i))
+      (is (= (range 50) (recv-all! net "n1"))))
+    (close! net)))
+
+(deftest reorder-test
+  (let [[_ net] (test-net {:seed 1})
+        s          (:scheduler net)]
+    (sched/start! s (constantly true))
+    (try
+      (net/reorder! net 1.0 50)
+      (testing "holds server messages back, so they arrive out of order"
+        (doseq [i (range 20)] (send! net "n2" "n1" i))
+        (let [ids (vec (repeatedly 20 #(:msg_id (:body (net/recv! net "n1"
+                                                                  10000)))))]
+          (is (= (range 20) (sort ids)))
+          (is (not= (range 20) ids))))
+
+      (testing "never holds back client messages"
+        (doseq [i (range 20)] (send! net "c1" "n1" i))
+        (is (= (range 20) (recv-all! net "n1"))))
+
+      (testing "stops"
+        (net/stop-reordering! net)
+        (doseq [i (range 20)] (send! net "n2" "n1" i))
+        (is (= (range 20) (recv-all! net "n1"))))
+      (finally
+        (sched/stop! s)
+        (close! net)))))
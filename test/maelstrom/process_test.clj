@@ -0,0 +1,136 @@
+(ns maelstrom.process-test
+  (:require [clojure.test :refer :all]
+            [maelstrom.net [message :as msg]
+                           [node :as node]]
+            [maelstrom.process :refer :all])
+  (:import (java.io ByteArrayInputStream
+                    ByteArrayOutputStream
+                    DataOutputStream)
+           (java.nio.charset StandardCharsets)
+           (java.util HashMap)))
+
+(defn test-net
+  "Just enough of a network to parse and encode messages: a node registry
+  which knows n1 and c1."
+  []
+  (let [nodes (node/registry)]
+    (node/intern! nodes "n1")
+    (node/intern! nodes "c1")
+    {:nodes nodes}))
+
+(defn utf8
+  "A string's UTF-8 bytes."
+  ^bytes [^String s]
+  (.getBytes s StandardCharsets/UTF_8))
+
+(defn node-output
+  "The bytes a node writes to us when it chooses framing: its init_ok, as a
+  line of JSON ending in newline, then a frame for each body, from n1 to
+  c1."
+  [net framing newline bodies]
+  (let [bytes (ByteArrayOutputStream.)
+        out   (DataOutputStream. bytes)
+        n1    (node/number (:nodes net) "n1")
+        c1    (node/number (:nodes net) "c1")]
+    (.write out (utf8 (str "{\"src\": \"n1\", \"dest\": \"c1\", \"body\": "
+                           "{\"type\": \"init_ok\", \"in_reply_to\": 1, "
+                           "\"framing\": \"" framing "\"}}" newline)))
+    (doseq [body bodies]
+      (encode-frame! net (framings framing) (ByteArrayOutputStream.) out
+                     (msg/message n1 c1 body)))
+    (.toByteArray bytes)))
+
+(defn read-node-output
+  "Reads an init_ok line, then n frames, from bytes, the way stdout-thread
+  does. Returns the messages."
+  [net framing n ^bytes bytes]
+  (let [in      (ByteArrayInputStream. bytes)
+        parser  (.createParser json-factory in)
+        cache   (HashMap.)
+        init-ok (read-line-message "n1" net parser cache)
+        frames  (frame-input parser in)
+        ; Small, so we have to grow it
+        buf     (object-array [(byte-array 1)])]
+    (into [init-ok]
+          (repeatedly n #(read-frame "n1" net frames (framings framing) buf
+                                     cache)))))
+
+(def bodies
+  [{:type "echo", :msg_id 2, :echo "hi"}
+   {:type "txn", :msg_id 3, :txn [["r" 1 nil] ["append" 1 2]]}
+   {:type "topology", :msg_id 4, :topology {"n1" ["n2" "n3"]}
+    :ratio 0.5, :ok true}])
+
+(deftest framing-test
+  (doseq [framing ["json" "cbor"]
+          newline ["\n" "\r\n"]]
+    (testing (str framing " with " (pr-str newline))
+      (let [net      (test-net)
+            messages (->> (node-output net framing newline bodies)
+                          (read-node-output net framing (count bodies)))]
+        (is (= {:type "init_ok", :in_reply_to 1, :framing framing}
+               (:body (first messages))))
+        (is (= bodies (map :body (rest messages))))
+        (is (every? #(= (node/number (:nodes net) "n1") (:src %))
+                    messages))
+        (is (every? #(= (node/number (:nodes net) "c1") (:dest %))
+                    messages))))))
+
+(deftest frame-input-test
+  (testing "frames whose lengths contain newline bytes"
+    (let [net   (test-net)
+          body  {:type "echo", :msg_id 1, :echo (apply str (repeat 2600 "x"))}
+          bytes (node-output net "json" "\n" [body body])]
+      (is (= [body body]
+             (map :body (rest (read-node-output net "json" 2 bytes))))))))
+
+(defn parse
+  "Parses a line of node output into a Message, with n1 and c1 known."
+  [net ^String line]
+  (read-line-message "n1" net (.createParser json-factory (utf8 line))
+                     (HashMap.)))
+
+(defn error-type
+  "Parses a line of node output, and returns the :type of the error it
+  throws, or nil if it doesn't."
+  [line]
+  (try (parse (test-net) line)
+       nil
+       (catch clojure.lang.ExceptionInfo e
+         (:type (ex-data e)))))
+
+(deftest read-message-test
+  (testing "valid"
+    (let [net (test-net)
+          m   (parse net (str "{\"src\": \"n1\", \"dest\": \"c1\", \"id\": 5, "
+                              "\"body\": {\"type\": \"echo\", \"msg_id\": 1, "
+                              "\"echo\": {\"9\": [1, 2.5, null, true]}}}"))]
+      (is (= (node/number (:nodes net) "n1") (:src m)))
+      (is (= (node/number (:nodes net) "c1") (:dest m)))
+      ; Only the body's own keys become keywords
+      (is (= {:type "echo", :msg_id 1, :echo {"9" [1 2.5 nil true]}}
+             (:body m)))))
+
+  (testing "end of stream"
+    (is (nil? (parse (test-net) ""))))
+
+  (testing "malformed"
+    (are [line] (= :malformed-message (error-type line))
+         ; No body
+         "{\"src\": \"n1\", \"dest\": \"c1\"}"
+         ; Body isn't an object
+         "{\"src\": \"n1\", \"dest\": \"c1\", \"body\": 3}"
+         ; No src
+         "{\"dest\": \"c1\", \"body\": {}}"
+         ; dest isn't a string
+         "{\"src\": \"n1\", \"dest\": 2, \"body\": {}}"
+         ; id isn't an integer
+         "{\"src\": \"n1\", \"dest\": \"c1\", \"id\": \"x\", \"body\": {}}"
+         ; Unknown key
+         "{\"src\": \"n1\", \"dest\": \"c1\", \"body\": {}, \"extra\": 1}"))
+
+  (testing "not JSON"
+    (are [line] (= :line-not-valid-json (error-type line))
+         "hello"
+         "[1, 2]"
+         "{\"src\": \"n1\", \"dest\": ")))